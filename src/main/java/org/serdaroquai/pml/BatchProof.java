@@ -0,0 +1,157 @@
+package org.serdaroquai.pml;
+
+import static org.serdaroquai.pml.Common.sha256;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Merkle proof of values (or absence) of many keys under a root hash at once.
+ *
+ * Holds the union of nodes stored along lookup paths of all keys, each only once, so upper
+ * level nodes shared by the paths are neither sent nor hashed nor parsed more than once.
+ *
+ * Wire format:
+ * 		[4 byte key count]([4 byte key length][key])...[4 byte node count]([4 byte node length][node])...
+ *
+ * @author tr1b6162
+ *
+ */
+public class BatchProof {
+
+	private final List<ByteBuffer> keys;
+	private final List<ByteBuffer> nodes;
+	private final NodeCodec codec;
+
+	/**
+	 * @param keys serialized keys
+	 * @param nodes distinct encoded nodes along lookup paths of keys
+	 */
+	public BatchProof(List<ByteBuffer> keys, List<ByteBuffer> nodes) {
+		this(keys, nodes, NodeCodec.PROTOBUF);
+	}
+
+	/**
+	 * @param keys serialized keys
+	 * @param nodes distinct encoded nodes along lookup paths of keys
+	 * @param codec nodes are encoded with
+	 */
+	public BatchProof(List<ByteBuffer> keys, List<ByteBuffer> nodes, NodeCodec codec) {
+		this.keys = Collections.unmodifiableList(keys);
+		this.nodes = Collections.unmodifiableList(nodes);
+		this.codec = codec;
+	}
+
+	public List<ByteBuffer> getKeys() {
+		return keys;
+	}
+
+	public List<ByteBuffer> getNodes() {
+		return nodes;
+	}
+
+	/**
+	 * @return total length of encoded nodes
+	 */
+	public int byteSize() {
+		int size = 0;
+		for (ByteBuffer node : nodes) size += node.remaining();
+		return size;
+	}
+
+	/**
+	 * @param rootHash
+	 * @return proven serialized value of every key in order, null values for keys proven to be absent
+	 * @throws IllegalArgumentException if this proof does not hold for given root
+	 */
+	public Map<ByteBuffer, ByteBuffer> verify(ByteBuffer rootHash) {
+		return verify(rootHash, keys, nodes, codec);
+	}
+
+	/**
+	 * Checks a batch proof against a root hash. Every node is hashed once, and PROTOBUF nodes are read in
+	 * place without being parsed. Stateless, thread safe.
+	 *
+	 * @param rootHash
+	 * @param keys serialized keys
+	 * @param nodes encoded nodes of the proof, in any order
+	 * @return proven serialized value of every key in order, null values for keys proven to be absent
+	 * @throws IllegalArgumentException if given nodes do not prove every key under given root
+	 */
+	public static Map<ByteBuffer, ByteBuffer> verify(ByteBuffer rootHash, List<ByteBuffer> keys, List<ByteBuffer> nodes) {
+		return verify(rootHash, keys, nodes, NodeCodec.PROTOBUF);
+	}
+
+	/**
+	 * @see #verify(ByteBuffer, List, List)
+	 * @param codec nodes are encoded with
+	 */
+	public static Map<ByteBuffer, ByteBuffer> verify(ByteBuffer rootHash, List<ByteBuffer> keys, List<ByteBuffer> nodes,
+			NodeCodec codec) {
+		Map<ByteBuffer, ByteBuffer> byHash = new HashMap<>();
+		for (ByteBuffer node : nodes) byHash.put(sha256(node), node);
+
+		Function<ByteBuffer, ByteBuffer> resolve = hash -> {
+			ByteBuffer node = byHash.get(hash);
+			if (node == null) throw new IllegalArgumentException("Proof does not hold for given root");
+			return node;
+		};
+
+		Map<ByteBuffer, ByteBuffer> result = new LinkedHashMap<>();
+		for (ByteBuffer key : keys) result.put(key, Proof.lookup(rootHash, key, resolve, codec));
+		return result;
+	}
+
+	public ByteBuffer toByteBuffer() {
+		int size = 8 + 4 * (keys.size() + nodes.size()) + byteSize();
+		for (ByteBuffer key : keys) size += key.remaining();
+
+		ByteBuffer result = ByteBuffer.allocate(size);
+		result.putInt(keys.size());
+		for (ByteBuffer key : keys) result.putInt(key.remaining()).put(key.duplicate());
+		result.putInt(nodes.size());
+		for (ByteBuffer node : nodes) result.putInt(node.remaining()).put(node.duplicate());
+		result.flip();
+		return result;
+	}
+
+	/**
+	 * @param bytes a batch proof in wire format
+	 * @return
+	 * @throws IllegalArgumentException if given bytes are malformed
+	 */
+	public static BatchProof from(ByteBuffer bytes) {
+		return from(bytes, NodeCodec.PROTOBUF);
+	}
+
+	/**
+	 * @param bytes a batch proof in wire format
+	 * @param codec nodes of the proof are encoded with
+	 * @return
+	 * @throws IllegalArgumentException if given bytes are malformed
+	 */
+	public static BatchProof from(ByteBuffer bytes, NodeCodec codec) {
+		try {
+			ByteBuffer in = bytes.duplicate();
+			return new BatchProof(readAll(in), readAll(in), codec);
+		} catch (BufferUnderflowException e) {
+			throw new IllegalArgumentException("Malformed proof", e);
+		}
+	}
+
+	private static List<ByteBuffer> readAll(ByteBuffer in) {
+		int count = in.getInt();
+		if (count < 0) throw new IllegalArgumentException("Malformed proof");
+
+		List<ByteBuffer> result = new ArrayList<>();
+		for (int i = 0; i < count; i++) result.add(ByteBuffer.wrap(Proof.read(in)));
+		return result;
+	}
+}
@@ -3,6 +3,7 @@ package org.serdaroquai.pml;
 import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.List;
 
 import org.serdaroquai.pml.NodeProto.TrieNode;
@@ -13,7 +14,14 @@ import com.google.protobuf.InvalidProtocolBufferException;
 
 public class Common {
 
-	private static final MessageDigest sha256digest;
+	// MessageDigest is not thread safe, so every thread gets its own instance
+	private static final ThreadLocal<MessageDigest> sha256digest = ThreadLocal.withInitial(() -> {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new AssertionError(e);
+		}
+	});
 	public static final TrieNode BRANCH_NODE_PROTOTYPE;
 	public static final TrieNode EMPTY_NODE;
 	public static final ByteBuffer EMPTY_NODE_BYTES;
@@ -21,12 +29,6 @@ public class Common {
 	public static final NibbleString EMPTY_NIBBLE;
 	
 	static {
-		try {
-			sha256digest = MessageDigest.getInstance("SHA-256");
-		} catch (NoSuchAlgorithmException e) {
-			throw new AssertionError(e);
-		}
-		
 		EMPTY_NODE = TrieNode.newBuilder().build();
 		EMPTY_NODE_BYTES = sha256(ByteBuffer.wrap(EMPTY_NODE.toByteArray()));
 		EMPTY = ByteBuffer.allocate(0);
@@ -58,8 +60,16 @@ public class Common {
 		return ByteBuffer.wrap(bytes);
 	}
 	
+	/**
+	 * Thread safe, can be called concurrently by any number of threads
+	 * 
+	 * @param raw
+	 * @return 32 byte sha256 hash of remaining bytes of given buffer, position of which is left untouched
+	 */
 	public static ByteBuffer sha256(ByteBuffer raw) {
-		return ByteBuffer.wrap(sha256digest.digest(raw.array()));
+		MessageDigest digest = sha256digest.get();
+		digest.update(raw.duplicate());
+		return ByteBuffer.wrap(digest.digest());
 	}
 
 	public static NodeType getNodeType(TrieNode node) {
@@ -79,6 +89,54 @@ public class Common {
 		}
 	}
 	
+	/**
+	 * Nested (inlined) children are skipped, since they are too short to reference anything.
+	 * 
+	 * @param node
+	 * @return hashes of children of given node that are stored on their own
+	 */
+	public static List<ByteBuffer> childHashes(TrieNode node) {
+		return childHashes(node, NodeCodec.PROTOBUF);
+	}
+	
+	/**
+	 * @param node
+	 * @param codec children of given node are encoded with
+	 * @return hashes of children of given node that are stored on their own
+	 */
+	public static List<ByteBuffer> childHashes(TrieNode node, NodeCodec codec) {
+		List<ByteBuffer> result = new ArrayList<>();
+		switch (getNodeType(node)) {
+		case EXTENSION:
+			addIfHash(node.getItem(1), codec, result);
+			break;
+		case BRANCH:
+			for (int i = 0; i < 16; i++) addIfHash(node.getItem(i), codec, result);
+			break;
+		default:
+			break;
+		}
+		return result;
+	}
+	
+	private static void addIfHash(ByteString ref, NodeCodec codec, List<ByteBuffer> result) {
+		if (ref.isEmpty()) return;
+		TrieNode child = codec.decode(ref.asReadOnlyByteBuffer());
+		if (getNodeType(child) == NodeType.HASH) result.add(child.getItem(0).asReadOnlyByteBuffer());
+	}
+	
+	/**
+	 * Copies remaining bytes of given buffer without changing its position
+	 * 
+	 * @param bytes
+	 * @return
+	 */
+	public static byte[] copyOf(ByteBuffer bytes) {
+		byte[] result = new byte[bytes.remaining()];
+		bytes.duplicate().get(result);
+		return result;
+	}
+	
 	public static String hashToShortString(ByteBuffer hash) {
 		NibbleString hashNibbles = NibbleString.from(hash);
 		StringBuilder sb = new StringBuilder();
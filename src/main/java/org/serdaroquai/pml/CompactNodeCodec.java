@@ -0,0 +1,176 @@
+package org.serdaroquai.pml;
+
+import static org.serdaroquai.pml.Common.getNodeType;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import org.serdaroquai.pml.NodeProto.TrieNode;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Node encoding that spends no bytes on absent children of a branch, and no length on the last
+ * item of a node (it runs up to the end).
+ *
+ * 	blank:				(no bytes)
+ * 	hash:				[0x01][32 byte hash]
+ * 	leaf or extension:	[0x02][varint key length][packed key][value or child]
+ * 	branch:				[0x03][2 byte bitmap of children]([varint child length][child])...[value]
+ *
+ * A hash reference takes 33 bytes instead of 34, and a branch with 2 children carries 2
+ * length prefixes instead of 17.
+ *
+ * @author tr1b6162
+ *
+ */
+class CompactNodeCodec implements NodeCodec {
+
+	static final byte HASH = 0x01;
+	static final byte PAIR = 0x02;
+	static final byte BRANCH = 0x03;
+
+	@Override
+	public byte[] encode(TrieNode node) {
+		switch (getNodeType(node)) {
+		case BLANK:
+			return new byte[0];
+
+		case HASH: {
+			ByteString hash = node.getItem(0);
+			byte[] result = new byte[1 + hash.size()];
+			result[0] = HASH;
+			hash.copyTo(result, 1);
+			return result;
+		}
+
+		case LEAF:
+		case EXTENSION: {
+			ByteString key = node.getItem(0), value = node.getItem(1);
+			byte[] result = new byte[1 + varintSize(key.size()) + key.size() + value.size()];
+			result[0] = PAIR;
+			int p = putVarint(result, 1, key.size());
+			key.copyTo(result, p);
+			value.copyTo(result, p + key.size());
+			return result;
+		}
+
+		case BRANCH: {
+			int size = 3 + node.getItem(16).size();
+			int bitmap = 0;
+			for (int i = 0; i < 16; i++) {
+				int length = node.getItem(i).size();
+				if (length == 0) continue;
+				bitmap |= 1 << i;
+				size += varintSize(length) + length;
+			}
+
+			byte[] result = new byte[size];
+			result[0] = BRANCH;
+			result[1] = (byte) (bitmap >> 8);
+			result[2] = (byte) bitmap;
+			int p = 3;
+			for (int i = 0; i < 16; i++) {
+				ByteString child = node.getItem(i);
+				if (child.isEmpty()) continue;
+				p = putVarint(result, p, child.size());
+				child.copyTo(result, p);
+				p += child.size();
+			}
+			node.getItem(16).copyTo(result, p);
+			return result;
+		}
+
+		default:
+			throw new AssertionError("Not possible");
+		}
+	}
+
+	@Override
+	public byte[] encodeHashNode(ByteBuffer hash) {
+		byte[] result = new byte[1 + hash.remaining()];
+		result[0] = HASH;
+		hash.duplicate().get(result, 1, hash.remaining());
+		return result;
+	}
+
+	@Override
+	public TrieNode decode(ByteBuffer encoded) {
+		ByteBuffer in = encoded.duplicate();
+		if (!in.hasRemaining()) return Common.EMPTY_NODE;
+
+		try {
+			switch (in.get()) {
+			case HASH:
+				if (in.remaining() != 32) throw new IllegalArgumentException("Malformed node");
+				return TrieNode.newBuilder().addItem(ByteString.copyFrom(in)).build();
+
+			case PAIR: {
+				int keyLength = getVarint(in);
+				if (keyLength <= 0 || keyLength > in.remaining()) throw new IllegalArgumentException("Malformed node");
+				return TrieNode.newBuilder()
+						.addItem(take(in, keyLength))
+						.addItem(ByteString.copyFrom(in))
+						.build();
+			}
+
+			case BRANCH: {
+				int bitmap = ((in.get() & 0xff) << 8) | (in.get() & 0xff);
+				TrieNode.Builder builder = TrieNode.newBuilder();
+				for (int i = 0; i < 16; i++) {
+					if ((bitmap & (1 << i)) == 0) {
+						builder.addItem(ByteString.EMPTY);
+						continue;
+					}
+					int length = getVarint(in);
+					if (length <= 0 || length > in.remaining()) throw new IllegalArgumentException("Malformed node");
+					builder.addItem(take(in, length));
+				}
+				return builder.addItem(ByteString.copyFrom(in)).build();
+			}
+
+			default:
+				throw new IllegalArgumentException("Malformed node");
+			}
+		} catch (BufferUnderflowException e) {
+			throw new IllegalArgumentException("Malformed node", e);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "COMPACT";
+	}
+
+	private static ByteString take(ByteBuffer in, int length) {
+		ByteBuffer slice = in.duplicate();
+		slice.limit(slice.position() + length);
+		in.position(in.position() + length);
+		return ByteString.copyFrom(slice);
+	}
+
+	private static int varintSize(int value) {
+		int size = 1;
+		while ((value >>>= 7) != 0) size++;
+		return size;
+	}
+
+	private static int putVarint(byte[] out, int p, int value) {
+		while ((value & ~0x7f) != 0) {
+			out[p++] = (byte) ((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out[p++] = (byte) value;
+		return p;
+	}
+
+	private static int getVarint(ByteBuffer in) {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			byte b = in.get();
+			value |= (b & 0x7f) << shift;
+			if (b >= 0) return value;
+		}
+		throw new IllegalArgumentException("Malformed node");
+	}
+}
@@ -0,0 +1,37 @@
+package org.serdaroquai.pml;
+
+import java.util.function.Supplier;
+
+/**
+ * Receives differences between two roots one at a time, in ascending order of serialized keys,
+ * so deltas between large roots can be streamed without being held in memory.
+ *
+ * Values are handed over as suppliers that deserialize on every call, so visitors that only
+ * need keys (or forward raw bytes, see {@link Trie#diffSerialized}) pay nothing for values.
+ *
+ * @author tr1b6162
+ *
+ * @param <K>
+ * @param <V>
+ */
+public interface DiffVisitor<K,V> {
+
+	/**
+	 * @param key that is only in new root
+	 * @param value in new root
+	 */
+	default void onAdded(K key, Supplier<V> value) {}
+
+	/**
+	 * @param key that is only in old root
+	 * @param oldValue in old root
+	 */
+	default void onRemoved(K key, Supplier<V> oldValue) {}
+
+	/**
+	 * @param key that is in both roots with different values
+	 * @param oldValue in old root
+	 * @param newValue in new root
+	 */
+	default void onChanged(K key, Supplier<V> oldValue, Supplier<V> newValue) {}
+}
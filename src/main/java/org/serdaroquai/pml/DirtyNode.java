@@ -0,0 +1,125 @@
+package org.serdaroquai.pml;
+
+import static org.serdaroquai.pml.Common.getNodeType;
+import static org.serdaroquai.pml.NibbleString.unpack;
+
+import org.serdaroquai.pml.NodeProto.TrieNode;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Mutable in-memory counterpart of a TrieNode, used while applying a batch of updates.
+ *
+ * Nodes touched by a batch are kept as DirtyNodes and are only encoded (and hashed) once,
+ * after every update in the batch has been applied.
+ *
+ * A node that has not been touched yet only knows the bytes it was encoded to in its parent
+ * (either the node itself if it was short enough, or a hash node). Such a node is loaded
+ * lazily, and as long as {@link #encoded} is not cleared it is re-used as is while encoding.
+ *
+ * A null child represents an empty slot.
+ */
+class DirtyNode {
+
+	/**
+	 * Bytes this node is referenced with in its parent. Non null only while the node
+	 * is known to be unchanged.
+	 */
+	ByteString encoded;
+
+	/**
+	 * One of LEAF, EXTENSION or BRANCH. null until the node is loaded.
+	 */
+	NodeType type;
+
+	/**
+	 * Key of a leaf or an extension node (not compact)
+	 */
+	NibbleString key;
+
+	/**
+	 * Value of a leaf node, or value of a branch node (empty if there is none)
+	 */
+	ByteString value = ByteString.EMPTY;
+
+	/**
+	 * 16 children of a branch node, or the single child of an extension node
+	 */
+	DirtyNode[] children;
+
+	/**
+	 * Number of nodes in this sub tree that need to be encoded. Only valid during encoding.
+	 */
+	int dirtySize;
+
+	private DirtyNode() {}
+
+	static DirtyNode encoded(ByteString encoded) {
+		DirtyNode node = new DirtyNode();
+		node.encoded = encoded;
+		return node;
+	}
+
+	static DirtyNode decoded(TrieNode trieNode) {
+		DirtyNode node = new DirtyNode();
+		node.fill(trieNode);
+		return node;
+	}
+
+	static DirtyNode leaf(NibbleString key, ByteString value) {
+		DirtyNode node = new DirtyNode();
+		node.type = NodeType.LEAF;
+		node.key = key;
+		node.value = value;
+		return node;
+	}
+
+	static DirtyNode extension(NibbleString key, DirtyNode child) {
+		DirtyNode node = new DirtyNode();
+		node.type = NodeType.EXTENSION;
+		node.key = key;
+		node.children = new DirtyNode[] {child};
+		return node;
+	}
+
+	static DirtyNode branch() {
+		DirtyNode node = new DirtyNode();
+		node.type = NodeType.BRANCH;
+		node.children = new DirtyNode[16];
+		return node;
+	}
+
+	boolean isLoaded() {
+		return type != null;
+	}
+
+	/**
+	 * Populates this node from its decoded TrieNode counterpart. Children are not loaded.
+	 *
+	 * @param trieNode
+	 */
+	void fill(TrieNode trieNode) {
+		type = getNodeType(trieNode);
+
+		switch (type) {
+		case LEAF:
+			key = unpack(trieNode.getItem(0).asReadOnlyByteBuffer());
+			value = trieNode.getItem(1);
+			break;
+		case EXTENSION:
+			key = unpack(trieNode.getItem(0).asReadOnlyByteBuffer());
+			children = new DirtyNode[] {encoded(trieNode.getItem(1))};
+			break;
+		case BRANCH:
+			children = new DirtyNode[16];
+			for (int i = 0; i < 16; i++) {
+				ByteString item = trieNode.getItem(i);
+				children[i] = item.isEmpty() ? null : encoded(item);
+			}
+			value = trieNode.getItem(16);
+			break;
+		default:
+			throw new AssertionError("Can not load a node of type " + type);
+		}
+	}
+}
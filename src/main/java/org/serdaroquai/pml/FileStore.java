@@ -0,0 +1,301 @@
+package org.serdaroquai.pml;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+/**
+ * A Store that appends encoded nodes to a log of memory mapped, fixed size segment files
+ * in a directory, and keeps an in memory index of hash to record position.
+ *
+ * Segment layout:
+ * 		[8 byte header][record][record]...[0]
+ * 		record: [4 byte length][32 byte hash][encoded node]
+ * 		removal: [-1][32 byte hash]
+ *
+ * Puts and removals are staged on heap until commit, which appends them all, flushes them to disk and then
+ * moves the position (segment, offset) of the end of the last committed record kept in the
+ * header of the first segment. Anything after it is ignored when the store is reopened.
+ * A zero length marks the end of a segment that is followed by another one.
+ *
+ * {@link #get(ByteBuffer)} returns read only views of the mapped segments without copying.
+ *
+ * Not thread safe.
+ *
+ * @author tr1b6162
+ *
+ */
+public class FileStore extends StagedStore implements Closeable {
+
+	public static final int DEFAULT_SEGMENT_SIZE = 64 << 20;
+
+	private static final int HEADER_SIZE = 8;
+	private static final int RECORD_HEADER_SIZE = 4 + 32;
+	private static final int TOMBSTONE = -1;
+	private static final String SEGMENT_FORMAT = "segment-%08d.log";
+
+	private final Path directory;
+	private final int segmentSize;
+	private final List<MappedByteBuffer> segments = new ArrayList<>();
+	private final Map<ByteBuffer, Long> index = new HashMap<>(); // hash -> segment << 32 | offset
+	private final List<ByteBuffer> uncommitted = new ArrayList<>(); // appended by an ongoing write
+	private final Map<ByteBuffer, Long> removed = new HashMap<>(); // index entries removed by an ongoing write
+
+	private int segment;       // segment appended to
+	private int offset;        // next append position in segment
+	private int committedSegment;
+	private int committedOffset;
+
+	/**
+	 * Opens (or creates) a store in given directory
+	 *
+	 * @param directory
+	 * @throws IOException
+	 */
+	public FileStore(Path directory) throws IOException {
+		this(directory, DEFAULT_SEGMENT_SIZE);
+	}
+
+	public FileStore(Path directory, int segmentSize) throws IOException {
+		if (segmentSize <= HEADER_SIZE + RECORD_HEADER_SIZE)
+			throw new IllegalArgumentException("Segment size is too small");
+
+		this.directory = Files.createDirectories(directory);
+		this.segmentSize = segmentSize;
+
+		long committed = map(0).getLong(0);
+		committedSegment = segmentOf(committed);
+		committedOffset = Math.max(HEADER_SIZE, offsetOf(committed));
+
+		for (int s = 1; s <= committedSegment; s++) map(s);
+		deleteSegmentsAfter(committedSegment);
+
+		for (int s = 0; s <= committedSegment; s++) {
+			int end = s == committedSegment ? committedOffset : segmentSize;
+			int position = HEADER_SIZE;
+			while (position + RECORD_HEADER_SIZE <= end) {
+				int length = segments.get(s).getInt(position);
+				if (length == 0) break;
+				if (length == TOMBSTONE) {
+					index.remove(readHash(s, position));
+					position += RECORD_HEADER_SIZE;
+				} else {
+					index.put(readHash(s, position), address(s, position));
+					position += RECORD_HEADER_SIZE + length;
+				}
+			}
+		}
+
+		segment = committedSegment;
+		offset = committedOffset;
+	}
+
+	@Override
+	protected ByteBuffer read(ByteBuffer hash) {
+		Long address = index.get(hash);
+		if (address == null) return null;
+
+		ByteBuffer view = segments.get(segmentOf(address)).duplicate();
+		int position = offsetOf(address);
+		int length = view.getInt(position);
+		view.position(position + RECORD_HEADER_SIZE);
+		view.limit(position + RECORD_HEADER_SIZE + length);
+		return view.slice().asReadOnlyBuffer();
+	}
+
+	@Override
+	public void put(ByteBuffer hash, ByteBuffer encoded) {
+		if (RECORD_HEADER_SIZE + encoded.remaining() > segmentSize - HEADER_SIZE)
+			throw new IllegalArgumentException("Node does not fit in a segment");
+		super.put(hash, encoded);
+	}
+
+	/**
+	 * Appends given nodes and removal records, flushes them to disk, then moves the committed 
+	 * position past them.
+	 */
+	@Override
+	protected boolean write(Map<ByteBuffer, ByteBuffer> nodes, Set<ByteBuffer> removals) {
+		try {
+			for (Entry<ByteBuffer, ByteBuffer> e : nodes.entrySet()) {
+				append(e.getKey(), e.getValue());
+			}
+			for (ByteBuffer hash : removals) appendRemoval(hash);
+			if (segment == committedSegment && offset == committedOffset) return true;
+
+			for (int s = committedSegment; s <= segment; s++) segments.get(s).force();
+			writeHeader(address(segment, offset));
+
+		} catch (RuntimeException e) {
+			try {
+				// the new position might reach the disk anyway, point it back to last commit
+				writeHeader(address(committedSegment, committedOffset));
+			} catch (RuntimeException ignored) {
+				// the header is restored in memory, and is flushed with the next commit
+			}
+			truncate();
+			return false;
+		}
+
+		committedSegment = segment;
+		committedOffset = offset;
+		uncommitted.clear();
+		removed.clear();
+		return true;
+	}
+
+	/**
+	 * Drops given hash from the index, and appends a removal record. A failed write brings 
+	 * the index entry back. Space of the removed record is not reclaimed.
+	 */
+	private void appendRemoval(ByteBuffer hash) {
+		Long address = index.remove(hash);
+		if (address == null) return;
+		removed.put(hash, address);
+
+		ensureCapacity(RECORD_HEADER_SIZE);
+		ByteBuffer target = segments.get(segment).duplicate();
+		target.position(offset);
+		target.putInt(TOMBSTONE);
+		target.put(hash.duplicate());
+		offset += RECORD_HEADER_SIZE;
+	}
+
+	/**
+	 * Moves the committed position kept in the header of the first segment, and flushes it.
+	 * A single 8 byte write, so the committed position is never half updated.
+	 *
+	 * @param address
+	 */
+	void writeHeader(long address) {
+		MappedByteBuffer first = segments.get(0);
+		first.putLong(0, address);
+		first.force();
+	}
+
+	@Override
+	public Collection<ByteBuffer> hashes() {
+		return new ArrayList<>(index.keySet());
+	}
+
+	private void append(ByteBuffer hash, ByteBuffer encoded) {
+		if (index.containsKey(hash)) return; // content addressed, nothing to do
+
+		int length = encoded.remaining();
+		int recordSize = RECORD_HEADER_SIZE + length;
+		ensureCapacity(recordSize);
+
+		ByteBuffer target = segments.get(segment).duplicate();
+		target.position(offset);
+		target.putInt(length);
+		target.put(hash.duplicate());
+		target.put(encoded.duplicate());
+
+		ByteBuffer key = readHash(segment, offset);
+		index.put(key, address(segment, offset));
+		uncommitted.add(key);
+		offset += recordSize;
+	}
+
+	private void ensureCapacity(int recordSize) {
+		if (offset + recordSize > segmentSize) {
+			// mark the end of current segment and move on to the next one
+			if (offset + 4 <= segmentSize) segments.get(segment).putInt(offset, 0);
+			segment++;
+			offset = HEADER_SIZE;
+			map(segment);
+		}
+	}
+
+	@Override
+	public void dumpAll() {
+		for (Entry<ByteBuffer, Long> e : index.entrySet()) {
+			System.out.println(String.format("%s: %s",
+					Common.hashToShortString(e.getKey()),
+					Common.toString(read(e.getKey()))));
+		}
+	}
+
+	/**
+	 * Truncates every record appended since last commit, and restores index entries they removed
+	 */
+	private void truncate() {
+		for (ByteBuffer hash : uncommitted) index.remove(hash);
+		uncommitted.clear();
+		index.putAll(removed);
+		removed.clear();
+
+		try {
+			deleteSegmentsAfter(committedSegment);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		segment = committedSegment;
+		offset = committedOffset;
+	}
+
+	/**
+	 * Mapped segments are released once they are garbage collected.
+	 */
+	@Override
+	public void close() throws IOException {
+		rollback();
+		segments.clear();
+		index.clear();
+		uncommitted.clear();
+		removed.clear();
+	}
+
+	private MappedByteBuffer map(int s) {
+		try (FileChannel channel = FileChannel.open(segmentPath(s),
+				StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			MappedByteBuffer buffer = channel.map(MapMode.READ_WRITE, 0, segmentSize);
+			segments.add(buffer);
+			return buffer;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void deleteSegmentsAfter(int s) throws IOException {
+		while (segments.size() > s + 1) segments.remove(segments.size() - 1);
+		for (int i = s + 1; Files.deleteIfExists(segmentPath(i)); i++);
+	}
+
+	private Path segmentPath(int s) {
+		return directory.resolve(String.format(SEGMENT_FORMAT, s));
+	}
+
+	private ByteBuffer readHash(int s, int position) {
+		ByteBuffer view = segments.get(s).duplicate();
+		view.position(position + 4);
+		view.limit(position + RECORD_HEADER_SIZE);
+		return view.slice().asReadOnlyBuffer();
+	}
+
+	private static long address(int s, int position) {
+		return ((long) s << 32) | position;
+	}
+
+	private static int segmentOf(long address) {
+		return (int) (address >>> 32);
+	}
+
+	private static int offsetOf(long address) {
+		return (int) address;
+	}
+}
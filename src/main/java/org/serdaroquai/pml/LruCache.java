@@ -0,0 +1,75 @@
+package org.serdaroquai.pml;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, thread safe, least recently used cache that keeps track of its hits and misses.
+ *
+ * Does not support null values, a null returned by {@link #get(Object)} is a miss.
+ *
+ * @param <K>
+ * @param <V>
+ */
+public class LruCache<K,V> {
+
+	private final int capacity;
+	private final LinkedHashMap<K,V> map;
+	private long hits;
+	private long misses;
+
+	public LruCache(int capacity) {
+		if (capacity <= 0) throw new IllegalArgumentException("Capacity must be positive");
+
+		this.capacity = capacity;
+		this.map = new LinkedHashMap<K,V>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K,V> eldest) {
+				return size() > LruCache.this.capacity;
+			}
+		};
+	}
+
+	public synchronized V get(K key) {
+		V value = map.get(key);
+		if (value == null) misses++;
+		else hits++;
+		return value;
+	}
+
+	public synchronized void put(K key, V value) {
+		if (value == null) throw new IllegalArgumentException("Null values are not allowed");
+		map.put(key, value);
+	}
+
+	public synchronized void remove(K key) {
+		map.remove(key);
+	}
+
+	public synchronized void clear() {
+		map.clear();
+	}
+
+	public synchronized int size() {
+		return map.size();
+	}
+
+	public int capacity() {
+		return capacity;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("LruCache[size=%d, capacity=%d, hits=%d, misses=%d]", map.size(), capacity, hits, misses);
+	}
+}
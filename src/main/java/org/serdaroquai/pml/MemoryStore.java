@@ -1,19 +1,29 @@
 package org.serdaroquai.pml;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
-public class MemoryStore implements Store {
+public class MemoryStore extends StagedStore {
 
 	private Map<ByteBuffer, ByteBuffer> map = new HashMap<>();
 	
 	@Override
-	public ByteBuffer get(ByteBuffer hash) { return map.get(hash); }
+	protected ByteBuffer read(ByteBuffer hash) { return map.get(hash); }
 
 	@Override
-	public void put(ByteBuffer hash, ByteBuffer encoded) { map.put(hash, encoded); }
+	protected boolean write(Map<ByteBuffer, ByteBuffer> nodes, Set<ByteBuffer> removals) { 
+		map.putAll(nodes);
+		for (ByteBuffer hash : removals) map.remove(hash);
+		return true;
+	}
+	
+	@Override
+	public Collection<ByteBuffer> hashes() { return new ArrayList<>(map.keySet()); }
 
 	@Override
 	public void dumpAll() {
@@ -24,9 +34,10 @@ public class MemoryStore implements Store {
 		}	
 	}
 	
-	@Override
-	public boolean commit() { return true;}
-	
-	@Override
-	public void rollback() {}
+	/**
+	 * @return number of committed nodes
+	 */
+	public int size() {
+		return map.size();
+	}
 }
@@ -7,8 +7,9 @@ import java.util.Iterator;
 /**
  * Immutable class representing an arbitrary length of nibbles.
  * 
- * Since underlying byte[] is immutable substring() methods return a view of same array 
- * so they are fast.
+ * Nibbles are kept packed, two per byte, as a view over the bytes they come from (a serialized 
+ * key, or the packed key of a node) with a nibble offset, so neither {@link #from(ByteBuffer)}, 
+ * {@link #unpack(ByteBuffer)} nor substring() methods copy anything.
  * 
  * @author tr1b6162
  *
@@ -20,17 +21,14 @@ public class NibbleString implements Iterable<Byte>{
 	public static final byte TERMINAL 		= 0b0010_0000;
 	private static final char[] base16 = new char[]{'0','1','2','3','4','5','6','7','8','9','a','b','c','d','e','f'};
 	
-	// each nibble is one byte despite the obvious waste of space
-	// each nibble is right aligned
-	private byte[] nibbles; 
-	private int offset;
-	private int length;
+	// two nibbles per byte, high nibble first. never written to
+	private final ByteBuffer bytes; 
+	private final int offset; // in nibbles, from index 0 of bytes
+	private final int length;
 	
-	private NibbleString() {};
-	
-	private NibbleString(byte[] nibbles, int begin, int length) {
-		this.nibbles = nibbles;
-		this.offset = begin;
+	private NibbleString(ByteBuffer bytes, int offset, int length) {
+		this.bytes = bytes;
+		this.offset = offset;
 		this.length = length;
 	}
 	
@@ -58,7 +56,15 @@ public class NibbleString implements Iterable<Byte>{
 	 */
 	public byte nibbleAsByte(int pos) {
 		if (pos < 0 || pos >= length) throw new IllegalArgumentException("Out of bounds");
-		return nibbles[pos + offset];
+		return nibble(offset + pos);
+	}
+	
+	/**
+	 * @param index absolute nibble index in bytes
+	 */
+	private byte nibble(int index) {
+		byte b = bytes.get(index >> 1);
+		return (byte) ((index & 1) == 0 ? (b >> 4) & 0x0f : b & 0x0f);
 	}
 	
 	public int size() {
@@ -67,7 +73,7 @@ public class NibbleString implements Iterable<Byte>{
 	
 	/**
 	 * Returns a view of the underlying NibbleString bounded by the given indices,
-	 * without copying its underlying byte[].
+	 * without copying its underlying bytes.
 	 * 
 	 * @param startIndex
 	 * @param endIndex
@@ -79,7 +85,7 @@ public class NibbleString implements Iterable<Byte>{
 	
 	/**
 	 * Returns a view of the underlying NibbleString bounded by the given indices,
-	 * without copying its underlying byte[].
+	 * without copying its underlying bytes.
 	 * 
 	 * @param startIndex
 	 * @param endIndex
@@ -90,11 +96,78 @@ public class NibbleString implements Iterable<Byte>{
 		if ((startIndex | endIndex | newLength | (length - newLength)) < 0) 
 			throw new IllegalArgumentException("Out of bounds");
 		
-		return new NibbleString(nibbles, offset + startIndex, newLength);
+		return new NibbleString(bytes, offset + startIndex, newLength);
+	}
+	
+	/**
+	 * @param other
+	 * @return number of leading nibbles that are same in both
+	 */
+	public int commonPrefixLength(NibbleString other) {
+		int max = Math.min(length, other.length);
+		int i = 0;
+		if (((offset ^ other.offset) & 1) == 0) {
+			// same alignment, compare whole bytes in between
+			if ((offset & 1) == 1 && i < max) {
+				if (nibble(offset) != other.nibble(other.offset)) return 0;
+				i++;
+			}
+			int a = (offset + i) >> 1, b = (other.offset + i) >> 1;
+			while (i + 1 < max && bytes.get(a) == other.bytes.get(b)) {
+				i += 2;
+				a++;
+				b++;
+			}
+		}
+		while (i < max && nibble(offset + i) == other.nibble(other.offset + i)) i++;
+		return i;
+	}
+	
+	/**
+	 * @param prefix
+	 * @return true if this starts with all nibbles of given prefix
+	 */
+	public boolean startsWith(NibbleString prefix) {
+		return prefix.length <= length && commonPrefixLength(prefix) == prefix.length;
+	}
+	
+	/**
+	 * Returns a new NibbleString of this one followed by the given one, by copying 
+	 * nibbles of both.
+	 * 
+	 * @param other
+	 * @return
+	 */
+	public NibbleString concat(NibbleString other) {
+		int newLength = length + other.length;
+		byte[] packed = new byte[(newLength + 1) >> 1];
+		for (int i = 0; i < length; i++) put(packed, i, nibble(offset + i));
+		for (int i = 0; i < other.length; i++) put(packed, length + i, other.nibble(other.offset + i));
+		return new NibbleString(ByteBuffer.wrap(packed), 0, newLength);
+	}
+	
+	private static void put(byte[] packed, int index, byte nibble) {
+		packed[index >> 1] |= (index & 1) == 0 ? nibble << 4 : nibble;
 	}
 	
 	/**
-	 * Converts given ByteBuffer to NibbleString by copying the underlying byte[] 
+	 * Creates a NibbleString of given nibbles. Each nibble is right aligned.
+	 * 
+	 * @param nibbles
+	 * @return
+	 */
+	public static NibbleString of(byte... nibbles) {
+		byte[] packed = new byte[(nibbles.length + 1) >> 1];
+		for (int i = 0; i < nibbles.length; i++) {
+			if ((nibbles[i] & 0xf0) != 0) throw new IllegalArgumentException("Not a nibble");
+			put(packed, i, nibbles[i]);
+		}
+		return new NibbleString(ByteBuffer.wrap(packed), 0, nibbles.length);
+	}
+	
+	/**
+	 * Views given ByteBuffer as a NibbleString, from index 0 up to its limit, without copying 
+	 * its bytes. Given buffer must not be modified afterwards.
 	 * 
 	 * Resulting NibbleString is always even length and is not packed.
 	 * 
@@ -102,25 +175,12 @@ public class NibbleString implements Iterable<Byte>{
 	 * @return
 	 */
 	public static NibbleString from(ByteBuffer bytes) {
-		NibbleString instance = new NibbleString();
-		int len = bytes.limit();
-		instance.nibbles = new byte[len << 1];
-		
-		int w = 0;
-		for (int r=0; r<len; r++) {
-			instance.nibbles[w++] = (byte) ((bytes.get(r) & 0xf0) >> 4);
-			instance.nibbles[w++] = (byte) ((bytes.get(r) & 0x0f));
-		}
-		
-		instance.offset = 0;
-		instance.length = instance.nibbles.length;
-		
-		return instance;
-		
+		return new NibbleString(bytes.duplicate(), 0, bytes.limit() << 1);
 	}
 
 	/**
-	 * Unpacks a packed ByteBuffer into a NibbleString. 
+	 * Views a packed ByteBuffer as a NibbleString, without copying its bytes. Given buffer 
+	 * must not be modified afterwards.
 	 * 
 	 * First nibble of a packed ByeString always contains leading flags representing 
 	 *  1) nibble is odd/even length. (Since a byte can store 2 nibbles)
@@ -132,26 +192,8 @@ public class NibbleString implements Iterable<Byte>{
 	public static NibbleString unpack(ByteBuffer bytes) {
 		if (bytes.limit() == 0) throw new IllegalArgumentException("Can not be empty");
 		
-		int len = bytes.limit();
-		NibbleString instance = new NibbleString();
-		
-		int w = 0, r = 1;
-		if ((bytes.get(0) & ODD_START) == ODD_START) {
-			instance.nibbles = new byte[(len << 1) - 1];
-			instance.nibbles[w++] = (byte) (bytes.get(0) & 0x0f);
-		} else {
-			instance.nibbles = new byte[(len << 1) - 2];
-		}
-		
-		while (r<len) {
-			instance.nibbles[w++] = (byte) ((bytes.get(r) & 0xf0) >> 4);
-			instance.nibbles[w++] = (byte) (bytes.get(r++) & 0x0f);
-		}
-		
-		instance.offset = 0;
-		instance.length = instance.nibbles.length;
-				
-		return instance;
+		int offset = (bytes.get(0) & ODD_START) == ODD_START ? 1 : 2;
+		return new NibbleString(bytes, offset, (bytes.limit() << 1) - offset);
 	}
 	
 	/**
@@ -174,12 +216,19 @@ public class NibbleString implements Iterable<Byte>{
 		byte flag = odd ? ODD_START : EVEN_START;
 		flag = (byte) (isTerminal ? flag | TERMINAL : flag);
 		
-		result[0] = odd ? (byte) (flag | n.nibbleAsByte(0)) : flag;
+		result[0] = odd ? (byte) (flag | n.nibble(n.offset)) : flag;
 		
-		int read = odd ? 1 : 0;
+		int read = n.offset + (odd ? 1 : 0);
 		int write = 1;
-		while (read < len) {
-			result[write++] = (byte) ((n.nibbleAsByte(read++) << 4) | n.nibbleAsByte(read++));
+		if ((read & 1) == 0) {
+			// aligned, copy whole bytes
+			ByteBuffer source = n.bytes.duplicate();
+			source.limit((n.offset + len) >> 1).position(read >> 1);
+			source.get(result, write, result.length - write);
+		} else {
+			while (write < result.length) {
+				result[write++] = (byte) ((n.nibble(read++) << 4) | n.nibble(read++));
+			}
 		}
 		
 		return ByteBuffer.wrap(result);
@@ -191,12 +240,9 @@ public class NibbleString implements Iterable<Byte>{
 	
 	@Override
 	public int hashCode() {
-        if (nibbles == null)
-            return 0;
-
         int result = 1;
         for (int i=0; i<length; i++) {
-        	result = 31 * result + nibbleAsByte(i);
+        	result = 31 * result + nibble(offset + i);
         }
 
         return result;
@@ -213,11 +259,7 @@ public class NibbleString implements Iterable<Byte>{
 		NibbleString other = (NibbleString) obj;
 		if (length != other.length)
 			return false;
-		for (int i=0; i<length; i++) {
-			if (nibbleAsByte(i) != other.nibbleAsByte(i))
-				return false;
-		}
-		return true;
+		return commonPrefixLength(other) == length;
 	}
 	
 	@Override
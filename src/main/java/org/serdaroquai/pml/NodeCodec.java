@@ -0,0 +1,88 @@
+package org.serdaroquai.pml;
+
+import java.nio.ByteBuffer;
+
+import org.serdaroquai.pml.NodeProto.TrieNode;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+/**
+ * Byte representation of nodes, both of stored nodes and of children inlined in (or referred to
+ * by hash from) their parents. Node hashes are taken over these bytes, so the codec is part of
+ * the identity of a root:
+ *
+ * 	- a trie, its store, and every proof, snapshot or sync of it must use the same codec
+ * 	- the same values give different root hashes under different codecs (except for the empty
+ * root, since every codec encodes a blank node as no bytes at all)
+ * 	- moving data to another codec means rebuilding it, e.g. by putting every key value pair
+ * of a root into a trie of the other codec
+ *
+ * {@link #PROTOBUF} is the default, and the only one root hashes of earlier versions match.
+ *
+ * @author tr1b6162
+ *
+ */
+public interface NodeCodec {
+
+	/**
+	 * @param node
+	 * @return encoded node, empty for a blank node
+	 */
+	byte[] encode(TrieNode node);
+
+	/**
+	 * @param encoded
+	 * @return decoded node
+	 * @throws IllegalArgumentException if given bytes are malformed
+	 */
+	TrieNode decode(ByteBuffer encoded);
+
+	/**
+	 * @param hash 32 byte hash of a stored node
+	 * @return encoded hash node referring to it, same as encoding a single item TrieNode
+	 */
+	default byte[] encodeHashNode(ByteBuffer hash) {
+		return encode(TrieNode.newBuilder().addItem(ByteString.copyFrom(hash.duplicate())).build());
+	}
+
+	/**
+	 * Protocol buffers encoding of TrieNode (repeated bytes item = 1)
+	 */
+	public static final NodeCodec PROTOBUF = new NodeCodec() {
+		@Override
+		public byte[] encode(TrieNode node) {
+			return node.toByteArray();
+		}
+
+		@Override
+		public byte[] encodeHashNode(ByteBuffer hash) {
+			byte[] result = new byte[2 + hash.remaining()];
+			result[0] = (1 << 3) | 2; // field 1, length delimited
+			result[1] = (byte) hash.remaining();
+			hash.duplicate().get(result, 2, hash.remaining());
+			return result;
+		}
+
+		@Override
+		public TrieNode decode(ByteBuffer encoded) {
+			try {
+				return TrieNode.parseFrom(encoded.duplicate());
+			} catch (InvalidProtocolBufferException e) {
+				throw new IllegalArgumentException("Malformed node", e);
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "PROTOBUF";
+		}
+	};
+
+	/**
+	 * Hand rolled encoding with a type tag, that only lists present children of a branch
+	 *
+	 * @see CompactNodeCodec
+	 */
+	public static final NodeCodec COMPACT = new CompactNodeCodec();
+}
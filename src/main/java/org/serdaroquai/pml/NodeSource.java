@@ -0,0 +1,38 @@
+package org.serdaroquai.pml;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Where {@link StateSync} fetches missing nodes from, typically a peer holding the target root.
+ *
+ * Answers are not trusted, every node is checked against its hash on arrival.
+ *
+ * @author tr1b6162
+ *
+ */
+public interface NodeSource {
+
+	/**
+	 * @param hashes of nodes to fetch
+	 * @return encoded nodes keyed by their hash, hashes that can not be served are left out
+	 */
+	Map<ByteBuffer, ByteBuffer> fetch(List<ByteBuffer> hashes);
+
+	/**
+	 * @param store
+	 * @return a source serving nodes committed to given store, e.g. of a peer in the same process
+	 */
+	static NodeSource of(Store store) {
+		return hashes -> {
+			Map<ByteBuffer, ByteBuffer> result = new HashMap<>();
+			for (ByteBuffer hash : hashes) {
+				ByteBuffer encoded = store.get(hash);
+				if (encoded != null) result.put(hash, encoded);
+			}
+			return result;
+		};
+	}
+}
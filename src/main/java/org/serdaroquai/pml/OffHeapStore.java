@@ -0,0 +1,246 @@
+package org.serdaroquai.pml;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A Store that keeps both nodes and its index outside of java heap, so that tens of millions
+ * of nodes neither cost an object per hash nor put pressure on the garbage collector.
+ *
+ * Nodes are appended as [32 byte hash][4 byte length][encoded node] records to an arena of
+ * direct ByteBuffer chunks.
+ *
+ * The index is an open addressing (linear probing) hash table in a direct ByteBuffer, where
+ * each 8 byte slot holds the arena address of a record (+1, so that 0 means empty). Since keys
+ * are already sha256 hashes, their own first bytes are used as the slot index.
+ *
+ * {@link #get(ByteBuffer)} returns read only views of the arena without copying.
+ * 
+ * Puts and removals are staged on heap until commit. Removed nodes are dropped from the index,
+ * but space they occupy in the arena is not reclaimed.
+ *
+ * Not thread safe.
+ *
+ * @author tr1b6162
+ *
+ */
+public class OffHeapStore extends StagedStore {
+
+	public static final int DEFAULT_CHUNK_SIZE = 16 << 20;
+
+	private static final int HASH_SIZE = 32;
+	private static final int RECORD_HEADER_SIZE = HASH_SIZE + 4;
+	private static final int SLOT_SIZE = Long.BYTES;
+	private static final int MAX_CAPACITY = 1 << 27; // slots, keeps index under 1GB
+	private static final double LOAD_FACTOR = 0.75;
+
+	private final int chunkSize;
+	private final List<ByteBuffer> chunks = new ArrayList<>();
+	private int offset; // next append position in last chunk
+
+	private ByteBuffer index;
+	private int mask;
+	private int size;
+
+	public OffHeapStore() {
+		this(1 << 16, DEFAULT_CHUNK_SIZE);
+	}
+
+	/**
+	 * @param initialCapacity number of index slots to start with, rounded up to a power of two
+	 * @param chunkSize bytes allocated at a time for nodes
+	 */
+	public OffHeapStore(int initialCapacity, int chunkSize) {
+		if (chunkSize < RECORD_HEADER_SIZE) throw new IllegalArgumentException("Chunk size is too small");
+
+		int capacity = Integer.highestOneBit(Math.max(16, Math.min(initialCapacity, MAX_CAPACITY)) - 1) << 1;
+		this.index = ByteBuffer.allocateDirect(capacity * SLOT_SIZE);
+		this.mask = capacity - 1;
+		this.chunkSize = chunkSize;
+		this.chunks.add(ByteBuffer.allocateDirect(chunkSize));
+	}
+
+	@Override
+	protected ByteBuffer read(ByteBuffer hash) {
+		if (hash.remaining() != HASH_SIZE) return null;
+
+		long address = index.getLong(findSlot(hash) * SLOT_SIZE) - 1;
+		if (address < 0) return null;
+
+		ByteBuffer view = chunkOf(address).duplicate();
+		int position = offsetOf(address);
+		int length = view.getInt(position + HASH_SIZE);
+		view.position(position + RECORD_HEADER_SIZE);
+		view.limit(position + RECORD_HEADER_SIZE + length);
+		return view.slice().asReadOnlyBuffer();
+	}
+
+	@Override
+	public void put(ByteBuffer hash, ByteBuffer encoded) {
+		if (hash.remaining() != HASH_SIZE) throw new IllegalArgumentException("Hash must be 32 bytes");
+		if (RECORD_HEADER_SIZE + encoded.remaining() > chunkSize) throw new IllegalArgumentException("Node does not fit in a chunk");
+		super.put(hash, encoded);
+	}
+
+	@Override
+	protected boolean write(Map<ByteBuffer, ByteBuffer> nodes, Set<ByteBuffer> removals) {
+		if ((long) size + nodes.size() > MAX_CAPACITY * LOAD_FACTOR) return false;
+
+		for (Map.Entry<ByteBuffer, ByteBuffer> e : nodes.entrySet()) {
+			append(e.getKey(), e.getValue());
+		}
+		for (ByteBuffer hash : removals) delete(hash);
+		return true;
+	}
+
+	private void append(ByteBuffer hash, ByteBuffer encoded) {
+		int slot = findSlot(hash);
+		if (index.getLong(slot * SLOT_SIZE) != 0) return; // content addressed, nothing to do
+
+		int recordSize = RECORD_HEADER_SIZE + encoded.remaining();
+		if (offset + recordSize > chunkSize) {
+			chunks.add(ByteBuffer.allocateDirect(chunkSize));
+			offset = 0;
+		}
+
+		ByteBuffer target = chunks.get(chunks.size() - 1).duplicate();
+		target.position(offset);
+		target.put(hash.duplicate());
+		target.putInt(encoded.remaining());
+		target.put(encoded.duplicate());
+
+		index.putLong(slot * SLOT_SIZE, address(chunks.size() - 1, offset) + 1);
+		offset += recordSize;
+
+		if (++size > (mask + 1) * LOAD_FACTOR) resize();
+	}
+
+	/**
+	 * Removes the slot of given hash, then shifts back following entries of the same probe 
+	 * sequence so that no lookup stops early at the emptied slot.
+	 */
+	private void delete(ByteBuffer hash) {
+		if (hash.remaining() != HASH_SIZE) return;
+
+		int empty = findSlot(hash);
+		if (index.getLong(empty * SLOT_SIZE) == 0) return;
+
+		int slot = empty;
+		while (true) {
+			slot = (slot + 1) & mask;
+			long entry = index.getLong(slot * SLOT_SIZE);
+			if (entry == 0) break;
+
+			// entry can move to the emptied slot only if its ideal slot is not in (empty, slot]
+			int ideal = idealSlot(hashAt(entry - 1), 0);
+			boolean stays = empty <= slot 
+					? (empty < ideal && ideal <= slot) 
+					: (empty < ideal || ideal <= slot);
+			if (stays) continue;
+
+			index.putLong(empty * SLOT_SIZE, entry);
+			empty = slot;
+		}
+		index.putLong(empty * SLOT_SIZE, 0);
+		size--;
+	}
+
+	@Override
+	public Collection<ByteBuffer> hashes() {
+		List<ByteBuffer> result = new ArrayList<>(size);
+		for (int slot = 0; slot <= mask; slot++) {
+			long address = index.getLong(slot * SLOT_SIZE) - 1;
+			if (address >= 0) result.add(ByteBuffer.wrap(Common.copyOf(hashAt(address))));
+		}
+		return result;
+	}
+
+	@Override
+	public void dumpAll() {
+		for (int slot = 0; slot <= mask; slot++) {
+			long address = index.getLong(slot * SLOT_SIZE) - 1;
+			if (address < 0) continue;
+
+			ByteBuffer hash = hashAt(address);
+			System.out.println(String.format("%s: %s",
+					Common.hashToShortString(hash),
+					Common.toString(read(hash))));
+		}
+	}
+
+	/**
+	 * @return number of committed nodes
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @param hash
+	 * @return slot holding given hash, or the empty slot it would be inserted into
+	 */
+	private int findSlot(ByteBuffer hash) {
+		int p = hash.position();
+		int slot = idealSlot(hash, p);
+
+		while (true) {
+			long address = index.getLong(slot * SLOT_SIZE) - 1;
+			if (address < 0 || equalsHashAt(address, hash, p)) return slot;
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	private int idealSlot(ByteBuffer hash, int p) {
+		return (int) hash.getLong(p) & mask;
+	}
+
+	private boolean equalsHashAt(long address, ByteBuffer hash, int p) {
+		ByteBuffer chunk = chunkOf(address);
+		int position = offsetOf(address);
+		for (int i = 0; i < HASH_SIZE; i += Long.BYTES) {
+			if (chunk.getLong(position + i) != hash.getLong(p + i)) return false;
+		}
+		return true;
+	}
+
+	private void resize() {
+		int capacity = (mask + 1) << 1;
+		if (capacity > MAX_CAPACITY) throw new IllegalStateException("Index is full");
+
+		ByteBuffer oldIndex = index;
+		int oldCapacity = mask + 1;
+
+		index = ByteBuffer.allocateDirect(capacity * SLOT_SIZE);
+		mask = capacity - 1;
+
+		for (int slot = 0; slot < oldCapacity; slot++) {
+			long entry = oldIndex.getLong(slot * SLOT_SIZE);
+			if (entry == 0) continue;
+			index.putLong(findSlot(hashAt(entry - 1)) * SLOT_SIZE, entry);
+		}
+	}
+
+	private ByteBuffer hashAt(long address) {
+		ByteBuffer view = chunkOf(address).duplicate();
+		int position = offsetOf(address);
+		view.position(position);
+		view.limit(position + HASH_SIZE);
+		return view.slice().asReadOnlyBuffer();
+	}
+
+	private ByteBuffer chunkOf(long address) {
+		return chunks.get((int) (address >>> 32));
+	}
+
+	private static long address(int chunk, int position) {
+		return ((long) chunk << 32) | position;
+	}
+
+	private static int offsetOf(long address) {
+		return (int) address;
+	}
+}
@@ -10,7 +10,10 @@ import static org.serdaroquai.pml.Common.toByteBuffer;
 /**
  * Pair of path, TrieNode. Used as a convenience object for level traversaling a root node.
  * Comparator is based on path only, and equals and hashCode are not implemented.
+ *
+ * @deprecated no longer used by {@link Trie#difference(ByteBuffer, java.util.Map, java.util.Map)}, see {@link TrieDiff}
  */
+@Deprecated
 public class Pair implements Comparable<Pair>{
     public final static Pair DUMMY = new Pair(null, null);
 
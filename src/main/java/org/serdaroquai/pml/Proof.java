@@ -0,0 +1,237 @@
+package org.serdaroquai.pml;
+
+import static org.serdaroquai.pml.Common.EMPTY_NODE_BYTES;
+import static org.serdaroquai.pml.Common.getNodeType;
+import static org.serdaroquai.pml.Common.sha256;
+import static org.serdaroquai.pml.NibbleString.unpack;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import org.serdaroquai.pml.NodeProto.TrieNode;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Merkle proof of the value of a key (or its absence) under a root hash.
+ *
+ * It consists of the encoded nodes stored along the lookup path of the key, root first. Nodes
+ * inlined in their parents are not listed separately. Verification only needs the root hash, so
+ * a client can check values without having the trie.
+ *
+ * Wire format:
+ * 		[4 byte key length][key][4 byte node count]([4 byte node length][node])...
+ *
+ * @author tr1b6162
+ *
+ */
+public class Proof {
+
+	private final ByteBuffer key;
+	private final List<ByteBuffer> nodes;
+	private final NodeCodec codec;
+
+	/**
+	 * @param key serialized key
+	 * @param nodes encoded nodes along lookup path of key, root first
+	 */
+	public Proof(ByteBuffer key, List<ByteBuffer> nodes) {
+		this(key, nodes, NodeCodec.PROTOBUF);
+	}
+
+	/**
+	 * @param key serialized key
+	 * @param nodes encoded nodes along lookup path of key, root first
+	 * @param codec nodes are encoded with
+	 */
+	public Proof(ByteBuffer key, List<ByteBuffer> nodes, NodeCodec codec) {
+		this.key = key;
+		this.nodes = Collections.unmodifiableList(nodes);
+		this.codec = codec;
+	}
+
+	public ByteBuffer getKey() {
+		return key.duplicate();
+	}
+
+	public List<ByteBuffer> getNodes() {
+		return nodes;
+	}
+
+	/**
+	 * @return total length of encoded nodes
+	 */
+	public int byteSize() {
+		int size = 0;
+		for (ByteBuffer node : nodes) size += node.remaining();
+		return size;
+	}
+
+	/**
+	 * @param rootHash
+	 * @return proven serialized value, null if key is proven to be absent
+	 * @throws IllegalArgumentException if this proof does not hold for given root
+	 */
+	public ByteBuffer verify(ByteBuffer rootHash) {
+		return verify(rootHash, key, nodes, codec);
+	}
+
+	/**
+	 * Checks a proof against a root hash. Stateless, thread safe.
+	 *
+	 * @param rootHash
+	 * @param key serialized key
+	 * @param nodes encoded nodes of the proof, in any order
+	 * @return proven serialized value, null if key is proven to be absent
+	 * @throws IllegalArgumentException if given nodes do not prove the key under given root
+	 */
+	public static ByteBuffer verify(ByteBuffer rootHash, ByteBuffer key, List<ByteBuffer> nodes) {
+		return verify(rootHash, key, nodes, NodeCodec.PROTOBUF);
+	}
+
+	/**
+	 * @see #verify(ByteBuffer, ByteBuffer, List)
+	 * @param codec nodes are encoded with
+	 */
+	public static ByteBuffer verify(ByteBuffer rootHash, ByteBuffer key, List<ByteBuffer> nodes, NodeCodec codec) {
+		Map<ByteBuffer, ByteBuffer> byHash = new HashMap<>();
+		for (ByteBuffer node : nodes) byHash.put(sha256(node), node);
+
+		return lookup(rootHash, key, hash -> {
+			ByteBuffer node = byHash.get(hash);
+			if (node == null) throw new IllegalArgumentException("Proof does not hold for given root");
+			return node;
+		}, codec);
+	}
+
+	/**
+	 * Follows the lookup path of a key from given root over encoded nodes. PROTOBUF nodes are read
+	 * in place (see {@link TrieLookup}), nodes of other codecs are decoded.
+	 *
+	 * @param rootHash
+	 * @param key serialized key
+	 * @param resolve encoded node of a 32 byte hash, null if there is none. Given hash has to be
+	 * copied to be kept.
+	 * @param codec nodes are encoded with
+	 * @return serialized value, null if there is none
+	 * @throws IllegalArgumentException if a node on the path is missing or malformed
+	 */
+	static ByteBuffer lookup(ByteBuffer rootHash, ByteBuffer key, Function<ByteBuffer, ByteBuffer> resolve, NodeCodec codec) {
+		if (codec != NodeCodec.PROTOBUF)
+			return lookup(rootHash, NibbleString.from(key), hash -> parse(resolve.apply(hash), codec), codec);
+
+		ByteBuffer value = TrieLookup.find(rootHash, key, resolve);
+		return value == EMPTY_NODE_BYTES || !value.hasRemaining() ? null : value;
+	}
+
+	/**
+	 * Follows the lookup path of a key from given root, resolving every stored node with given function.
+	 *
+	 * @param rootHash
+	 * @param path nibbles of serialized key
+	 * @param resolve decoded node of a 32 byte hash
+	 * @param codec inlined children are encoded with
+	 * @return serialized value, null if there is none
+	 */
+	static ByteBuffer lookup(ByteBuffer rootHash, NibbleString path, Function<ByteBuffer, TrieNode> resolve, NodeCodec codec) {
+		if (EMPTY_NODE_BYTES.equals(rootHash)) return null;
+
+		TrieNode node = resolve.apply(rootHash);
+		while (true) {
+			switch (getNodeType(node)) {
+			case BLANK:
+				return null;
+
+			case HASH:
+				node = resolve.apply(node.getItem(0).asReadOnlyByteBuffer());
+				continue;
+
+			case BRANCH:
+				if (path.size() == 0) return valueOf(node.getItem(16));
+
+				ByteString child = node.getItem(path.nibbleAsByte(0));
+				if (child.isEmpty()) return null;
+				path = path.substring(1);
+				node = parse(child.asReadOnlyByteBuffer(), codec);
+				continue;
+
+			case LEAF:
+				return path.equals(unpack(node.getItem(0).asReadOnlyByteBuffer())) ? valueOf(node.getItem(1)) : null;
+
+			case EXTENSION:
+				NibbleString key = unpack(node.getItem(0).asReadOnlyByteBuffer());
+				if (!path.startsWith(key)) return null;
+				path = path.substring(key.size());
+				node = parse(node.getItem(1).asReadOnlyByteBuffer(), codec);
+				continue;
+
+			default:
+				throw new AssertionError("Not possible");
+			}
+		}
+	}
+
+	public ByteBuffer toByteBuffer() {
+		int size = 8 + key.remaining() + 4 * nodes.size() + byteSize();
+		ByteBuffer result = ByteBuffer.allocate(size);
+		result.putInt(key.remaining()).put(key.duplicate());
+		result.putInt(nodes.size());
+		for (ByteBuffer node : nodes) result.putInt(node.remaining()).put(node.duplicate());
+		result.flip();
+		return result;
+	}
+
+	/**
+	 * @param bytes a proof in wire format
+	 * @return
+	 * @throws IllegalArgumentException if given bytes are malformed
+	 */
+	public static Proof from(ByteBuffer bytes) {
+		return from(bytes, NodeCodec.PROTOBUF);
+	}
+
+	/**
+	 * @param bytes a proof in wire format
+	 * @param codec nodes of the proof are encoded with
+	 * @return
+	 * @throws IllegalArgumentException if given bytes are malformed
+	 */
+	public static Proof from(ByteBuffer bytes, NodeCodec codec) {
+		try {
+			ByteBuffer in = bytes.duplicate();
+			ByteBuffer key = ByteBuffer.wrap(read(in));
+			int count = in.getInt();
+			if (count < 0) throw new IllegalArgumentException("Malformed proof");
+
+			List<ByteBuffer> nodes = new ArrayList<>();
+			for (int i = 0; i < count; i++) nodes.add(ByteBuffer.wrap(read(in)));
+			return new Proof(key, nodes, codec);
+
+		} catch (BufferUnderflowException e) {
+			throw new IllegalArgumentException("Malformed proof", e);
+		}
+	}
+
+	static byte[] read(ByteBuffer in) {
+		int length = in.getInt();
+		if (length < 0 || length > in.remaining()) throw new IllegalArgumentException("Malformed proof");
+		byte[] result = new byte[length];
+		in.get(result);
+		return result;
+	}
+
+	private static ByteBuffer valueOf(ByteString value) {
+		return value.isEmpty() ? null : value.asReadOnlyByteBuffer();
+	}
+
+	static TrieNode parse(ByteBuffer encoded, NodeCodec codec) {
+		if (encoded == null) throw new IllegalArgumentException("Missing node");
+		return codec.decode(encoded);
+	}
+}
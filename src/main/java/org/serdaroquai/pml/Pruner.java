@@ -0,0 +1,135 @@
+package org.serdaroquai.pml;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import org.serdaroquai.pml.NodeProto.TrieNode;
+
+/**
+ * Incremental mark and sweep of nodes that are not reachable from a set of retained roots
+ * or from the current root of a trie.
+ *
+ * Work is done in {@link #step(int)}s of bounded size, so that pruning can be interleaved with
+ * puts and gets of the trie on the same thread, instead of stopping it for a full pass.
+ *
+ * Marking walks nodes reachable from retained roots. Once it is done, a snapshot of committed
+ * hashes is swept, deleting every hash that is not marked. Nodes committed after the snapshot
+ * are never swept. Since updates can refer back to an old (possibly unmarked) node, every step
+ * first marks whatever is reachable from the current root of the trie if it changed.
+ *
+ * Deletes of a sweep step are committed at its end, so that an update failing in between steps
+ * can not roll them back. If that commit fails, they are rolled back and a new snapshot is swept.
+ *
+ * Not thread safe.
+ *
+ * @author tr1b6162
+ *
+ */
+public class Pruner {
+
+	private final Trie<?,?> trie;
+	private final Store store;
+	private final Set<ByteBuffer> marked = new HashSet<>();
+	private final Deque<ByteBuffer> pending = new ArrayDeque<>();
+
+	private ByteBuffer markedRoot;
+	private Iterator<ByteBuffer> sweep; // null until marking is done
+	private long removedCount;
+	private boolean done;
+
+	Pruner(Trie<?,?> trie, Collection<ByteBuffer> retainedRoots) {
+		this.trie = trie;
+		this.store = trie.getStore();
+		for (ByteBuffer root : retainedRoots) pending.push(root);
+	}
+
+	/**
+	 * Marks or sweeps at most (about) budget nodes
+	 *
+	 * @param budget
+	 * @return true once pruning is complete
+	 */
+	public boolean step(int budget) {
+		if (budget <= 0) throw new IllegalArgumentException("Budget must be positive");
+		if (done) return true;
+
+		ByteBuffer currentRoot = trie.getRootHash();
+		if (!currentRoot.equals(markedRoot)) {
+			pending.push(currentRoot);
+			markedRoot = currentRoot;
+		}
+
+		while (budget > 0 && !pending.isEmpty()) {
+			mark(pending.pop());
+			budget--;
+		}
+		if (!pending.isEmpty()) return false;
+
+		if (sweep == null) sweep = store.hashes().iterator();
+
+		LruCache<ByteBuffer, TrieNode> nodeCache = trie.getNodeCache();
+		int removed = 0;
+		while (budget > 0 && sweep.hasNext()) {
+			ByteBuffer hash = sweep.next();
+			if (!marked.contains(hash)) {
+				store.remove(hash);
+				if (nodeCache != null) nodeCache.remove(hash);
+				removed++;
+			}
+			budget--;
+		}
+
+		// persists deletes, nothing else is staged in between updates
+		if (removed > 0) {
+			if (!store.commit()) {
+				store.rollback();
+				sweep = null;
+				return false;
+			}
+			removedCount += removed;
+		}
+		if (sweep.hasNext()) return false;
+
+		marked.clear();
+		done = true;
+		return true;
+	}
+
+	/**
+	 * Runs remaining steps to completion
+	 *
+	 * @return number of deleted nodes
+	 */
+	public long run() {
+		while (!step(Integer.MAX_VALUE));
+		return removedCount;
+	}
+
+	public boolean isDone() {
+		return done;
+	}
+
+	/**
+	 * @return number of nodes deleted so far
+	 */
+	public long getRemovedCount() {
+		return removedCount;
+	}
+
+	private void mark(ByteBuffer hash) {
+		if (!marked.add(hash)) return;
+
+		ByteBuffer encoded = store.get(hash);
+		if (encoded == null) return; // empty root, or already gone
+
+		NodeCodec codec = trie.getCodec();
+		for (ByteBuffer child : Common.childHashes(codec.decode(encoded), codec)) {
+			if (!marked.contains(child)) pending.push(child);
+		}
+	}
+}
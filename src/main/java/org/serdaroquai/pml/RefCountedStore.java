@@ -0,0 +1,53 @@
+package org.serdaroquai.pml;
+
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+/**
+ * A Store that keeps track of how many times each node is referenced, either by a parent
+ * node or as a retained root, and reclaims nodes as soon as they are no longer referenced.
+ *
+ * A trie on such a store retains every root it commits, and releases it through
+ * {@link Trie#release(ByteBuffer)}.
+ *
+ * @author tr1b6162
+ *
+ */
+public interface RefCountedStore extends Store {
+
+	/**
+	 * Adds a reference to the node with given hash. Nodes that are neither stored nor staged
+	 * are not tracked and ignored.
+	 *
+	 * @param hash
+	 * @return new reference count
+	 */
+	int increment(ByteBuffer hash);
+
+	/**
+	 * Drops a reference to the node with given hash. Once a node is no longer referenced it is
+	 * removed, and its children are decremented in turn. Like puts and increments, part of the
+	 * ongoing transaction, so it is persisted on next commit and undone on rollback.
+	 *
+	 * @param hash
+	 * @return new reference count
+	 */
+	default int decrement(ByteBuffer hash) {
+		return decrement(hash, removed -> {});
+	}
+
+	/**
+	 * Like {@link #decrement(ByteBuffer)}, and passes the hash of every removed node to given consumer.
+	 *
+	 * @param hash
+	 * @param removed
+	 * @return new reference count
+	 */
+	int decrement(ByteBuffer hash, Consumer<ByteBuffer> removed);
+
+	/**
+	 * @param hash
+	 * @return number of references to the node with given hash, 0 if it is not tracked
+	 */
+	int refCount(ByteBuffer hash);
+}
@@ -0,0 +1,197 @@
+package org.serdaroquai.pml;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import org.serdaroquai.pml.NodeProto.TrieNode;
+
+
+/**
+ * Keeps reference counts of nodes of any other store in memory.
+ *
+ * On commit, every node first stored in the transaction adds a reference to each of its
+ * children. Nodes of the transaction that end up unreferenced (intermediate nodes of an
+ * update, or a root nobody retained) are dropped right away, instead of being written.
+ *
+ * Nodes already in the wrapped store when it is wrapped are not tracked and never reclaimed.
+ * Counts are not persisted, a reopened store starts untracked.
+ *
+ * Not thread safe.
+ *
+ * @author tr1b6162
+ *
+ */
+public class RefCountingStore implements RefCountedStore {
+
+	private final Store store;
+	private final NodeCodec codec;
+	private final Map<ByteBuffer, Integer> counts = new HashMap<>();
+	private final Set<ByteBuffer> fresh = new LinkedHashSet<>(); // first stored by ongoing transaction
+	private final Map<ByteBuffer, Integer> previous = new HashMap<>(); // counts before ongoing transaction
+
+	public RefCountingStore(Store store) {
+		this(store, NodeCodec.PROTOBUF);
+	}
+
+	/**
+	 * @param store
+	 * @param codec nodes are encoded with, to find their children
+	 */
+	public RefCountingStore(Store store, NodeCodec codec) {
+		this.store = store;
+		this.codec = codec;
+	}
+
+	@Override
+	public ByteBuffer get(ByteBuffer hash) {
+		return store.get(hash);
+	}
+
+	@Override
+	public void put(ByteBuffer hash, ByteBuffer encoded) {
+		if (!counts.containsKey(hash) && !fresh.contains(hash) && store.get(hash) == null) fresh.add(hash);
+		store.put(hash, encoded);
+	}
+
+	/**
+	 * Like puts, increments are part of the ongoing transaction and undone on rollback.
+	 */
+	@Override
+	public int increment(ByteBuffer hash) {
+		Integer count = counts.get(hash);
+		if (count == null && !fresh.contains(hash)) return 0;
+		return set(hash, count == null ? 1 : count + 1, true);
+	}
+
+	/**
+	 * Like increments, decrements are part of the ongoing transaction and undone on rollback.
+	 */
+	@Override
+	public int decrement(ByteBuffer hash, Consumer<ByteBuffer> removed) {
+		Integer count = counts.get(hash);
+		if (count == null) return 0;
+		if (count > 1) return set(hash, count - 1, true);
+
+		reclaim(hash, true, removed);
+		return 0;
+	}
+
+	@Override
+	public int refCount(ByteBuffer hash) {
+		Integer count = counts.get(hash);
+		return count == null ? 0 : count;
+	}
+
+	/**
+	 * Removes given node whatever its count is. Children of a tracked node lose the reference 
+	 * it held, and are removed too if it was their last one, so that pruning through this store
+	 * keeps counts of the remaining nodes right. Part of the ongoing transaction like decrements.
+	 */
+	@Override
+	public void remove(ByteBuffer hash) {
+		if (counts.containsKey(hash)) {
+			reclaim(hash, true, removed -> {});
+			return;
+		}
+		fresh.remove(hash);
+		store.remove(hash);
+	}
+
+	@Override
+	public Collection<ByteBuffer> hashes() {
+		return store.hashes();
+	}
+
+	@Override
+	public void dumpAll() {
+		store.dumpAll();
+	}
+
+	@Override
+	public boolean commit() {
+		for (ByteBuffer hash : fresh) {
+			for (ByteBuffer child : children(store.get(hash))) increment(child);
+		}
+
+		for (ByteBuffer hash : new ArrayList<>(fresh)) {
+			if (fresh.contains(hash) && !counts.containsKey(hash)) reclaim(hash, true, removed -> {});
+		}
+
+		if (!store.commit()) {
+			restore();
+			return false;
+		}
+
+		previous.clear();
+		fresh.clear();
+		return true;
+	}
+
+	@Override
+	public void rollback() {
+		restore();
+		store.rollback();
+	}
+
+	/**
+	 * @return number of tracked nodes
+	 */
+	public int size() {
+		return counts.size();
+	}
+
+	/**
+	 * Removes given node, and every descendant whose last reference was held by a removed node
+	 */
+	private void reclaim(ByteBuffer hash, boolean transactional, Consumer<ByteBuffer> removed) {
+		Deque<ByteBuffer> pending = new ArrayDeque<>();
+		pending.push(hash);
+
+		while (!pending.isEmpty()) {
+			ByteBuffer current = pending.pop();
+			ByteBuffer encoded = store.get(current);
+			set(current, 0, transactional);
+			fresh.remove(current);
+			store.remove(current);
+			removed.accept(current);
+
+			for (ByteBuffer child : children(encoded)) {
+				Integer count = counts.get(child);
+				if (count == null) continue;
+				if (count > 1) set(child, count - 1, transactional);
+				else pending.push(child);
+			}
+		}
+	}
+
+	private int set(ByteBuffer hash, int count, boolean transactional) {
+		if (transactional && !previous.containsKey(hash)) previous.put(hash, counts.get(hash));
+
+		if (count == 0) counts.remove(hash);
+		else counts.put(hash, count);
+		return count;
+	}
+
+	private void restore() {
+		for (Map.Entry<ByteBuffer, Integer> e : previous.entrySet()) {
+			if (e.getValue() == null) counts.remove(e.getKey());
+			else counts.put(e.getKey(), e.getValue());
+		}
+		previous.clear();
+		fresh.clear();
+	}
+
+	private List<ByteBuffer> children(ByteBuffer encoded) {
+		if (encoded == null) return new ArrayList<>();
+		return Common.childHashes(codec.decode(encoded), codec);
+	}
+}
@@ -8,7 +8,8 @@ import java.nio.charset.StandardCharsets;
  *  Serialization interface to define how to convert a given T type into ByteString.
  *  There are some built in common implementations for convenience.
  *  
- *  TODO: ByteString introduces an unnecessary level of byte[] copying.
+ *  Serialized values are kept by the trie without being copied, so a returned buffer 
+ *  must not be written to afterwards.
  *  
  * @author tr1b6162
  *
@@ -0,0 +1,246 @@
+package org.serdaroquai.pml;
+
+import static org.serdaroquai.pml.Common.EMPTY_NODE_BYTES;
+import static org.serdaroquai.pml.Common.copyOf;
+import static org.serdaroquai.pml.Common.sha256;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+
+/**
+ * Export of all nodes reachable from a root into a stream, and bulk import of it into any store,
+ * for cold starts that do not replay puts.
+ *
+ * Nodes are written as stored, children before parents (so the root comes last), and hashes are
+ * not written at all: they are recomputed on load. A node is only accepted if every child it
+ * refers to is already in the store, and the last node must hash to the root, so a loaded root
+ * is complete and untampered. Since a parent is never loaded before its children, a load that
+ * fails half way only leaves complete sub trees behind (see {@link StateSync}), which are
+ * unreachable until the load is done.
+ *
+ * Format:
+ * 		[4 byte magic][4 byte version][32 byte root hash]
+ * 		([4 byte payload length][4 byte crc32 of payload][payload: ([varint node length][node])...])...
+ * 		[4 byte 0]
+ *
+ * Shared sub trees are written once per reference, since export keeps no record of visited nodes.
+ * The node codec is not recorded, a snapshot has to be loaded with the codec it was written with.
+ *
+ * @author tr1b6162
+ *
+ */
+public class Snapshot {
+
+	static final int MAGIC = 0x504d4c53; // PMLS
+	static final int VERSION = 1;
+	static final int CHUNK_SIZE = 64 * 1024;
+
+	private Snapshot() {}
+
+	private static class Frame {
+		final ByteBuffer encoded;
+		final List<ByteBuffer> children;
+		int next;
+
+		Frame(ByteBuffer encoded, List<ByteBuffer> children) {
+			this.encoded = encoded;
+			this.children = children;
+		}
+	}
+
+	/**
+	 * Streams every node reachable from given root into given output
+	 *
+	 * @param store
+	 * @param rootHash
+	 * @param out
+	 * @return number of nodes written
+	 * @throws IOException
+	 * @throws IllegalArgumentException if store misses a node of given root
+	 */
+	public static long write(Store store, ByteBuffer rootHash, OutputStream out) throws IOException {
+		return write(store, rootHash, out, NodeCodec.PROTOBUF);
+	}
+
+	/**
+	 * @see #write(Store, ByteBuffer, OutputStream)
+	 * @param codec nodes of given root are encoded with
+	 */
+	public static long write(Store store, ByteBuffer rootHash, OutputStream out, NodeCodec codec) throws IOException {
+		DataOutputStream data = new DataOutputStream(out);
+		data.writeInt(MAGIC);
+		data.writeInt(VERSION);
+		data.write(copyOf(rootHash));
+
+		ByteArrayOutputStream chunk = new ByteArrayOutputStream(CHUNK_SIZE + 1024);
+		CodedOutputStream coded = CodedOutputStream.newInstance(chunk);
+		long count = 0;
+
+		Deque<Frame> stack = new ArrayDeque<>();
+		if (!EMPTY_NODE_BYTES.equals(rootHash)) stack.push(frame(store, rootHash, codec));
+		while (!stack.isEmpty()) {
+			Frame top = stack.peek();
+			if (top.next < top.children.size()) {
+				stack.push(frame(store, top.children.get(top.next++), codec));
+				continue;
+			}
+
+			stack.pop();
+			coded.writeUInt32NoTag(top.encoded.remaining());
+			coded.writeRawBytes(top.encoded.duplicate());
+			count++;
+
+			if (coded.getTotalBytesWritten() >= CHUNK_SIZE) {
+				coded.flush();
+				writeChunk(data, chunk);
+				coded = CodedOutputStream.newInstance(chunk);
+			}
+		}
+
+		coded.flush();
+		if (chunk.size() > 0) writeChunk(data, chunk);
+		data.writeInt(0);
+		data.flush();
+		return count;
+	}
+
+	/**
+	 * Loads a snapshot into given store, verifying hashes on the common pool
+	 *
+	 * @see #load(InputStream, Store, ForkJoinPool)
+	 */
+	public static ByteBuffer load(InputStream in, Store store) throws IOException {
+		return load(in, store, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Loads a snapshot into given store, committing chunk by chunk. Nodes of a chunk are hashed
+	 * on given pool, and put to the store from calling thread.
+	 *
+	 * @param in
+	 * @param store
+	 * @param hashingPool
+	 * @return root hash of the snapshot
+	 * @throws IOException if stream is truncated, or malformed
+	 */
+	public static ByteBuffer load(InputStream in, Store store, ForkJoinPool hashingPool) throws IOException {
+		return load(in, store, hashingPool, NodeCodec.PROTOBUF);
+	}
+
+	/**
+	 * @see #load(InputStream, Store, ForkJoinPool)
+	 * @param codec nodes of the snapshot are encoded with
+	 */
+	public static ByteBuffer load(InputStream in, Store store, ForkJoinPool hashingPool, NodeCodec codec) throws IOException {
+		DataInputStream data = new DataInputStream(in);
+		if (data.readInt() != MAGIC) throw new IOException("Not a snapshot");
+		int version = data.readInt();
+		if (version != VERSION) throw new IOException("Unsupported snapshot version " + version);
+
+		byte[] root = new byte[32];
+		data.readFully(root);
+		ByteBuffer rootHash = ByteBuffer.wrap(root);
+		ByteBuffer last = EMPTY_NODE_BYTES;
+
+		int length;
+		while ((length = data.readInt()) != 0) {
+			if (length < 0) throw new IOException("Malformed snapshot");
+			int crc = data.readInt();
+			byte[] payload = new byte[length];
+			data.readFully(payload);
+
+			CRC32 checksum = new CRC32();
+			checksum.update(payload);
+			if ((int) checksum.getValue() != crc) throw new IOException("Snapshot chunk is corrupt");
+
+			List<byte[]> nodes = parseChunk(payload);
+			List<Verified> verified = verify(nodes, hashingPool, codec);
+			try {
+				for (int i = 0; i < nodes.size(); i++) {
+					for (ByteBuffer child : verified.get(i).children) {
+						if (store.get(child) == null) throw new IOException("Snapshot node refers to a missing child");
+					}
+					store.put(verified.get(i).hash, ByteBuffer.wrap(nodes.get(i)));
+				}
+				if (!store.commit()) throw new IOException("Could not commit snapshot chunk");
+			} catch (IOException | RuntimeException e) {
+				store.rollback();
+				throw e;
+			}
+			if (!verified.isEmpty()) last = verified.get(verified.size() - 1).hash;
+		}
+
+		if (!rootHash.equals(last)) throw new IOException("Snapshot does not end with its root");
+		return rootHash;
+	}
+
+	private static Frame frame(Store store, ByteBuffer hash, NodeCodec codec) {
+		ByteBuffer encoded = store.get(hash);
+		if (encoded == null) throw new IllegalArgumentException("Missing node " + Common.hashToShortString(hash));
+		return new Frame(encoded, Common.childHashes(codec.decode(encoded), codec));
+	}
+
+	private static void writeChunk(DataOutputStream data, ByteArrayOutputStream chunk) throws IOException {
+		byte[] payload = chunk.toByteArray();
+		CRC32 checksum = new CRC32();
+		checksum.update(payload);
+
+		data.writeInt(payload.length);
+		data.writeInt((int) checksum.getValue());
+		data.write(payload);
+		chunk.reset();
+	}
+
+	private static List<byte[]> parseChunk(byte[] payload) throws IOException {
+		List<byte[]> nodes = new ArrayList<>();
+		CodedInputStream coded = CodedInputStream.newInstance(payload);
+		while (!coded.isAtEnd()) {
+			int length = coded.readRawVarint32();
+			if (length < 0 || length > payload.length) throw new IOException("Malformed snapshot");
+			nodes.add(coded.readRawBytes(length));
+		}
+		return nodes;
+	}
+
+	/**
+	 * Hash and child hashes of a loaded node
+	 */
+	private static class Verified {
+		final ByteBuffer hash;
+		final List<ByteBuffer> children;
+
+		Verified(byte[] node, NodeCodec codec) {
+			this.hash = sha256(ByteBuffer.wrap(node));
+			this.children = Common.childHashes(codec.decode(ByteBuffer.wrap(node)), codec);
+		}
+	}
+
+	private static List<Verified> verify(List<byte[]> nodes, ForkJoinPool hashingPool, NodeCodec codec) throws IOException {
+		try {
+			return hashingPool.submit(() -> nodes.parallelStream()
+					.map(node -> new Verified(node, codec))
+					.collect(Collectors.toList())).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while loading snapshot", e);
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package org.serdaroquai.pml;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Base class for stores that keep puts and removals of the ongoing transaction in a staging buffer.
+ *
+ * Nothing reaches the underlying medium until {@link #commit()}, which hands all staged
+ * nodes and removals to {@link #write(Map, Set)} at once. {@link #rollback()} simply drops them,
+ * so a failed or abandoned update leaves nothing behind.
+ *
+ * Staged nodes and removals are visible to {@link #get(ByteBuffer)} of the same store, but not
+ * to {@link #hashes()}, which only lists committed nodes.
+ *
+ * @author tr1b6162
+ *
+ */
+public abstract class StagedStore implements Store {
+
+	private final Map<ByteBuffer, ByteBuffer> staged = new LinkedHashMap<>();
+	private final Set<ByteBuffer> removed = new HashSet<>();
+
+	/**
+	 * @param hash
+	 * @return bytes stored with given hash in the underlying medium, null if there is none
+	 */
+	protected abstract ByteBuffer read(ByteBuffer hash);
+
+	/**
+	 * Writes all given nodes to, and deletes all given removals from the underlying medium 
+	 * in a single transaction. Either all of them or none are applied.
+	 *
+	 * Some of the given nodes might already be stored, and some removals might be missing.
+	 * A hash is never both among nodes and removals.
+	 *
+	 * @param nodes hash, encoded node pairs in the order they were put
+	 * @param removals hashes of nodes to delete
+	 * @return true in case of success
+	 */
+	protected abstract boolean write(Map<ByteBuffer, ByteBuffer> nodes, Set<ByteBuffer> removals);
+
+	@Override
+	public ByteBuffer get(ByteBuffer hash) {
+		ByteBuffer encoded = staged.get(hash);
+		if (encoded != null) return encoded.asReadOnlyBuffer();
+		return !removed.isEmpty() && removed.contains(hash) ? null : read(hash);
+	}
+
+	@Override
+	public void put(ByteBuffer hash, ByteBuffer encoded) {
+		staged.put(hash, encoded);
+		if (!removed.isEmpty()) removed.remove(hash);
+	}
+
+	@Override
+	public void remove(ByteBuffer hash) {
+		staged.remove(hash);
+		removed.add(hash);
+	}
+
+	@Override
+	public boolean commit() {
+		if (!write(Collections.unmodifiableMap(staged), Collections.unmodifiableSet(removed))) return false;
+
+		staged.clear();
+		removed.clear();
+		return true;
+	}
+
+	@Override
+	public void rollback() {
+		staged.clear();
+		removed.clear();
+	}
+
+	/**
+	 * @return number of puts and removals waiting for commit
+	 */
+	public int stagedCount() {
+		return staged.size() + removed.size();
+	}
+}
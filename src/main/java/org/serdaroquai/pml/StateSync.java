@@ -0,0 +1,212 @@
+package org.serdaroquai.pml;
+
+import static org.serdaroquai.pml.Common.EMPTY_NODE_BYTES;
+import static org.serdaroquai.pml.Common.copyOf;
+import static org.serdaroquai.pml.Common.sha256;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Brings a local store up to a target root by fetching missing nodes from a {@link NodeSource}.
+ *
+ * Nodes are requested breadth first in batches and checked against their hash on arrival. A
+ * fetched node is only put to the local store once all of its children are there, so a node
+ * found in the local store always comes with its whole sub tree, and is never descended into.
+ * That makes syncing resumable: after an interruption (a failing source, or a restart with a new
+ * instance) it carries on from what was committed, and only re-fetches nodes that were in
+ * flight. It also makes syncing to a root close to one already held cheap. If the local store
+ * fails to commit, a new instance has to be started, which resumes the same way.
+ *
+ * Not thread safe.
+ *
+ * @author tr1b6162
+ *
+ */
+public class StateSync {
+
+	public static final int DEFAULT_BATCH_SIZE = 256;
+
+	/**
+	 * A node requested or fetched, but not yet stored
+	 */
+	private static class Pending {
+		final List<ByteBuffer> parents = new ArrayList<>(1); // once per reference
+		ByteBuffer encoded; // null until fetched
+		int missingChildren;
+	}
+
+	private final Store store;
+	private final NodeSource source;
+	private final int batchSize;
+	private final NodeCodec codec;
+	private final Deque<ByteBuffer> queue = new ArrayDeque<>();
+	private final Map<ByteBuffer, Pending> pending = new HashMap<>();
+
+	private long fetchedCount;
+	private long rejectedCount;
+
+	public StateSync(Store store, NodeSource source, ByteBuffer rootHash) {
+		this(store, source, rootHash, DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * @param store local store to fill
+	 * @param source
+	 * @param rootHash target root
+	 * @param batchSize maximum number of hashes asked from source at once
+	 */
+	public StateSync(Store store, NodeSource source, ByteBuffer rootHash, int batchSize) {
+		this(store, source, rootHash, batchSize, NodeCodec.PROTOBUF);
+	}
+
+	/**
+	 * @param store local store to fill
+	 * @param source
+	 * @param rootHash target root
+	 * @param batchSize maximum number of hashes asked from source at once
+	 * @param codec nodes of the target root are encoded with
+	 */
+	public StateSync(Store store, NodeSource source, ByteBuffer rootHash, int batchSize, NodeCodec codec) {
+		if (batchSize <= 0) throw new IllegalArgumentException("Batch size must be positive");
+		this.store = store;
+		this.source = source;
+		this.batchSize = batchSize;
+		this.codec = codec;
+
+		ByteBuffer root = ByteBuffer.wrap(copyOf(rootHash));
+		if (!EMPTY_NODE_BYTES.equals(root) && store.get(root) == null) request(root, null);
+	}
+
+	/**
+	 * Fetches a single batch of missing nodes, and commits every node whose sub tree is complete
+	 *
+	 * @return true once the target root is in the local store
+	 * @throws IllegalStateException if source served none of the requested nodes, or commit fails
+	 */
+	public boolean step() {
+		if (isDone()) return true;
+
+		List<ByteBuffer> batch = new ArrayList<>(Math.min(batchSize, queue.size()));
+		while (batch.size() < batchSize && !queue.isEmpty()) batch.add(queue.poll());
+
+		Map<ByteBuffer, ByteBuffer> fetched;
+		try {
+			fetched = source.fetch(batch);
+		} catch (RuntimeException e) {
+			// nothing arrived, ask again next time
+			for (int i = batch.size() - 1; i >= 0; i--) queue.push(batch.get(i));
+			throw e;
+		}
+
+		int accepted = 0;
+		for (ByteBuffer hash : batch) {
+			ByteBuffer encoded = fetched.get(hash);
+			if (encoded != null && accept(hash, encoded)) {
+				accepted++;
+			} else {
+				queue.add(hash);
+			}
+		}
+
+		if (!store.commit()) {
+			store.rollback();
+			throw new IllegalStateException("Could not commit synced nodes");
+		}
+		if (accepted == 0) throw new IllegalStateException("Source did not serve any of requested nodes");
+		return isDone();
+	}
+
+	/**
+	 * Runs remaining steps to completion
+	 *
+	 * @throws IllegalStateException if source can not serve a missing node
+	 */
+	public void run() {
+		while (!step());
+	}
+
+	public boolean isDone() {
+		return pending.isEmpty();
+	}
+
+	/**
+	 * @return number of nodes fetched and verified so far
+	 */
+	public long getFetchedCount() {
+		return fetchedCount;
+	}
+
+	/**
+	 * @return number of nodes that did not match their hash
+	 */
+	public long getRejectedCount() {
+		return rejectedCount;
+	}
+
+	/**
+	 * @return number of nodes requested or fetched, but not stored yet
+	 */
+	public int getPendingCount() {
+		return pending.size();
+	}
+
+	private void request(ByteBuffer hash, ByteBuffer parent) {
+		Pending p = pending.get(hash);
+		if (p == null) {
+			p = new Pending();
+			pending.put(hash, p);
+			queue.add(hash);
+		}
+		if (parent != null) p.parents.add(parent);
+	}
+
+	private boolean accept(ByteBuffer hash, ByteBuffer encoded) {
+		Pending p = pending.get(hash);
+		byte[] bytes = copyOf(encoded);
+		if (!hash.equals(sha256(ByteBuffer.wrap(bytes)))) {
+			rejectedCount++;
+			return false;
+		}
+
+		List<ByteBuffer> children;
+		try {
+			children = Common.childHashes(codec.decode(ByteBuffer.wrap(bytes)), codec);
+		} catch (IllegalArgumentException e) {
+			rejectedCount++;
+			return false;
+		}
+
+		fetchedCount++;
+		p.encoded = ByteBuffer.wrap(bytes);
+		for (ByteBuffer child : children) {
+			if (store.get(child) != null) continue; // complete sub tree
+			p.missingChildren++;
+			request(ByteBuffer.wrap(copyOf(child)), hash);
+		}
+
+		if (p.missingChildren == 0) complete(hash);
+		return true;
+	}
+
+	/**
+	 * Stores given node, and every ancestor of it that is left with no missing children
+	 */
+	private void complete(ByteBuffer hash) {
+		Deque<ByteBuffer> stack = new ArrayDeque<>();
+		stack.push(hash);
+		while (!stack.isEmpty()) {
+			ByteBuffer h = stack.pop();
+			Pending p = pending.remove(h);
+			store.put(h, p.encoded);
+			for (ByteBuffer parent : p.parents) {
+				if (--pending.get(parent).missingChildren == 0) stack.push(parent);
+			}
+		}
+	}
+}
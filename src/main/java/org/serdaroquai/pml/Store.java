@@ -1,41 +1,79 @@
 package org.serdaroquai.pml;
 
 import java.nio.ByteBuffer;
+import java.util.Collection;
 
+/**
+ * Content addressed storage of encoded nodes.
+ * 
+ * A trie update puts all of its new nodes, then commits them as a single transaction, or 
+ * rolls them back if the commit fails. Puts and deletes are expected to be staged until commit 
+ * (see {@link StagedStore}), so that a rolled back update leaves nothing behind.
+ *
+ */
 public interface Store {
 
 	/**
 	 * Returns bytes associated with given 32 byte key
 	 * 
+	 * Given hash might be a view of a buffer that is reused once this method returns, 
+	 * implementations have to copy it rather than keep it.
+	 * 
 	 * @param hash
 	 * @return
 	 */
 	ByteBuffer get(ByteBuffer hash);
 	
 	/**
-	 * Store given bytes along with its representative 32 byte key
+	 * Stage given bytes along with its representative 32 byte key, 
+	 * to be persisted on next commit
 	 * 
 	 * @param hash
 	 * @param encoded
 	 */
 	void put(ByteBuffer hash, ByteBuffer encoded);
 	
+	/**
+	 * Deletes the node stored with given 32 byte key, if there is one.
+	 * Like puts, deletes are only guaranteed to be persisted after next commit, and are 
+	 * discarded by rollback.
+	 * 
+	 * Needed for pruning and reference counting, stores that do not support deletes
+	 * do not have to implement it.
+	 * 
+	 * @param hash
+	 * @throws UnsupportedOperationException if the store does not support deletes
+	 */
+	default void remove(ByteBuffer hash) {
+		throw new UnsupportedOperationException("Store does not support deletes");
+	}
+	
+	/**
+	 * Needed for pruning, stores that can not list their nodes do not have to implement it.
+	 * 
+	 * @return a snapshot of keys of all committed nodes
+	 * @throws UnsupportedOperationException if the store can not list its nodes
+	 */
+	default Collection<ByteBuffer> hashes() {
+		throw new UnsupportedOperationException("Store can not list its nodes");
+	}
+	
 	/*
 	 * TODO remove this debug purposes only 
 	 */
 	void dumpAll();
 	
 	/**
-	 * Persists all nodes all at once transactionally to the underlying medium.
-	 * Has no effect in memory stores
+	 * Persists all nodes put since last commit all at once transactionally 
+	 * to the underlying medium.
 	 * 
 	 * @return true in case of success
 	 */
 	boolean commit();
 	
 	/**
-	 * rollback is caled if commit retuns false and is responsible to
-	 * discard changes
+	 * rollback is called if commit returns false (or an update fails half way) 
+	 * and is responsible to discard all nodes put and deleted since last commit
 	 * 
 	 */
 	void rollback();
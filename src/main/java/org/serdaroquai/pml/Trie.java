@@ -8,11 +8,17 @@ import static org.serdaroquai.pml.NibbleString.unpack;
 
 import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import org.serdaroquai.pml.NodeProto.TrieNode;
 
 import com.google.protobuf.ByteString;
-import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.UnsafeByteOperations;
 
 
 /**
@@ -74,6 +80,11 @@ public class Trie<K,V>{
 	private ByteBuffer rootHash;
 	private Serializer<K> keySerializer;
 	private Serializer<V> valueSerializer;
+	private ForkJoinPool hashingPool;
+	private int parallelThreshold;
+	private LruCache<ByteBuffer, TrieNode> nodeCache;
+	private LruCache<ByteBuffer, ByteBuffer> valueCache; // serialized key -> value in current root
+	private NodeCodec codec = NodeCodec.PROTOBUF;
 		
 	public static class TrieBuilder<K,V> {
 		
@@ -82,6 +93,11 @@ public class Trie<K,V>{
 		Map<K,V> initialValues = new HashMap<>();
 		Serializer<K> keySerializer; 
 		Serializer<V> valueSerializer;
+		ForkJoinPool hashingPool;
+		int parallelThreshold = 1024;
+		int nodeCacheSize;
+		int valueCacheSize;
+		NodeCodec codec = NodeCodec.PROTOBUF;
 		
 		public TrieBuilder() {};
 		
@@ -110,6 +126,64 @@ public class Trie<K,V>{
 			return this;
 		}
 		
+		/**
+		 * Hash nodes touched by a batch on given pool. Sub trees with less than 
+		 * {@code threshold} touched nodes are still hashed sequentially.
+		 * 
+		 * Resulting root hashes are identical to sequential hashing.
+		 * 
+		 * @param hashingPool
+		 * @param threshold
+		 * @return
+		 */
+		public TrieBuilder<K,V> parallelHashing(ForkJoinPool hashingPool, int threshold) {
+			this.hashingPool = hashingPool;
+			this.parallelThreshold = threshold;
+			return this;
+		}
+		
+		public TrieBuilder<K,V> parallelHashing(ForkJoinPool hashingPool) {
+			this.hashingPool = hashingPool;
+			return this;
+		}
+		
+		/**
+		 * Keep up to given number of decoded nodes in memory, so frequently visited nodes 
+		 * (like the ones close to the root) are not fetched and parsed over and over again.
+		 * 
+		 * @param nodeCacheSize number of nodes, 0 disables caching (default)
+		 * @return
+		 */
+		public TrieBuilder<K,V> nodeCache(int nodeCacheSize) {
+			this.nodeCacheSize = nodeCacheSize;
+			return this;
+		}
+		
+		/**
+		 * Keep up to given number of recently queried or updated key value pairs of the 
+		 * current root in memory, so {@link Trie#get(Object)} can answer them without 
+		 * traversing the trie. Queries on past roots are not cached.
+		 * 
+		 * @param valueCacheSize number of key value pairs, 0 disables caching (default)
+		 * @return
+		 */
+		public TrieBuilder<K,V> valueCache(int valueCacheSize) {
+			this.valueCacheSize = valueCacheSize;
+			return this;
+		}
+		
+		/**
+		 * Encoding of nodes, which root hashes depend on. Store (and given root hash) must 
+		 * have been written with the same codec, see {@link NodeCodec}.
+		 * 
+		 * @param codec {@link NodeCodec#PROTOBUF} by default
+		 * @return
+		 */
+		public TrieBuilder<K,V> codec(NodeCodec codec) {
+			this.codec = codec;
+			return this;
+		}
+		
 		public Trie<K,V> build() {
 			if (keySerializer == null || valueSerializer == null) 
 				throw new AssertionError("Need to set serializers");
@@ -117,20 +191,25 @@ public class Trie<K,V>{
 			if (rootHash != EMPTY_NODE_BYTES && !initialValues.isEmpty())
 				throw new AssertionError("Can not have initial values in non-empty trie");
 			
-			Trie<K,V> trie = new Trie<K,V>(rootHash, store, keySerializer, valueSerializer);
+			Trie<K,V> trie = new Trie<K,V>(rootHash, store, keySerializer, valueSerializer, codec);
+			trie.hashingPool = hashingPool;
+			trie.parallelThreshold = parallelThreshold;
+			if (nodeCacheSize > 0) trie.nodeCache = new LruCache<>(nodeCacheSize);
+			if (valueCacheSize > 0) trie.valueCache = new LruCache<>(valueCacheSize);
 			if (rootHash != EMPTY_NODE_BYTES) return trie;
 			
 			// populate initial values
-			Trie<K,V> temp = new Trie<K,V>(rootHash, new MemoryStore(), keySerializer, valueSerializer);
-			for (Map.Entry<K, V> e : initialValues.entrySet()) {
-				temp.put(e.getKey(), e.getValue());
-			}
+			Trie<K,V> temp = new Trie<K,V>(rootHash, new MemoryStore(), keySerializer, valueSerializer, codec);
+			temp.hashingPool = hashingPool;
+			temp.parallelThreshold = parallelThreshold;
+			temp.putAll(initialValues);
 			ByteBuffer rootHash = temp.getRootHash();
 			TrieNode rootNode = temp.decodeToNode(rootHash, true);
 			
-			List<TrieNode> nodes = temp.nodes();
-			for (TrieNode node : nodes) 
-				trie.encodeNode(node, rootNode.equals(node));
+			// every node of temp is reachable from its root, hand over its bytes as they are
+			for (ByteBuffer hash : temp.store.hashes()) 
+				trie.store.put(hash, temp.store.get(hash));
+			trie.retain(rootHash);
 			
 			if (trie.store.commit()) {
 				trie.rootHash = rootHash;
@@ -138,6 +217,7 @@ public class Trie<K,V>{
 				return trie;
 			}
 			
+			trie.store.rollback();
 			throw new AssertionError("Could not commit initial values");
 			
 		}
@@ -147,9 +227,11 @@ public class Trie<K,V>{
 			ByteBuffer rootHash, 
 			Store store, 
 			Serializer<K> keySerializer, 
-			Serializer<V> valueSerializer) {
+			Serializer<V> valueSerializer,
+			NodeCodec codec) {
 		
-		this.store = store; // decodeToNode needs store to be initialized first
+		this.store = store; // decodeToNode needs store and codec to be initialized first
+		this.codec = codec;
 		this.rootHash = rootHash;
 		this.rootNode = decodeToNode(rootHash, true);
 		this.keySerializer = keySerializer;
@@ -157,18 +239,117 @@ public class Trie<K,V>{
 	}
 	
 	public V get(K key) {
-		return valueSerializer.deserialize(
-				getHelper(rootNode, from(keySerializer.serialize(key))));
+		ByteBuffer serializedKey = keySerializer.serialize(key);
+		if (valueCache == null) 
+			return valueSerializer.deserialize(lookup(rootHash, rootNode, serializedKey));
+		
+		ByteBuffer value = valueCache.get(serializedKey);
+		if (value == null) {
+			value = lookup(rootHash, rootNode, serializedKey);
+			valueCache.put(serializedKey, value);
+		}
+		// deserializers might move the position of read only buffers
+		return valueSerializer.deserialize(value.duplicate());
 	}
 	
 	public V get(ByteBuffer rootHash, K key) {
-		return valueSerializer.deserialize(
-				getHelper(decodeToNode(rootHash, true), from(keySerializer.serialize(key))));
+		return valueSerializer.deserialize(lookup(rootHash, null, keySerializer.serialize(key)));
+	}
+	
+	/**
+	 * Without a node cache, walks PROTOBUF encoded nodes as they are stored (see {@link TrieLookup}), 
+	 * otherwise goes through decoded nodes.
+	 * 
+	 * @param rootHash
+	 * @param rootNode decoded root if at hand, null otherwise
+	 * @param serializedKey
+	 * @return
+	 */
+	private ByteBuffer lookup(ByteBuffer rootHash, TrieNode rootNode, ByteBuffer serializedKey) {
+		if (nodeCache == null && codec == NodeCodec.PROTOBUF) 
+			return TrieLookup.get(store, rootHash, serializedKey);
+		
+		if (rootNode == null) rootNode = decodeToNode(rootHash, true);
+		return getHelper(rootNode, from(serializedKey));
 	}
 
 	public ByteBuffer put(K key, V value) {
 		return update(keySerializer.serialize(key), valueSerializer.serialize(value));
 	}
+	
+	/**
+	 * Removes given key from the trie, collapsing nodes that are left with a single child.
+	 * Resulting root hash is the same as a trie that never had the key.
+	 * 
+	 * @param key
+	 * @return new root hash
+	 */
+	public ByteBuffer remove(K key) {
+		return batch().remove(key).commit();
+	}
+	
+	/**
+	 * Puts all given key value pairs in a single batch. 
+	 * 
+	 * Resulting root hash is the same as putting them one by one, but every touched node 
+	 * is encoded and hashed only once and store is committed only once.
+	 * 
+	 * @param values
+	 * @return new root hash
+	 */
+	public ByteBuffer putAll(Map<K,V> values) {
+		WriteBatch batch = batch();
+		for (Map.Entry<K, V> e : values.entrySet()) {
+			batch.put(e.getKey(), e.getValue());
+		}
+		return batch.commit();
+	}
+	
+	/**
+	 * @return a new empty batch of updates for this trie
+	 */
+	public WriteBatch batch() {
+		return new WriteBatch();
+	}
+	
+	/**
+	 * A set of updates that are applied to the trie all at once on {@link #commit()}.
+	 * 
+	 * Nothing is written to the store until commit. If the same key is put or removed 
+	 * more than once the last update wins.
+	 */
+	public class WriteBatch {
+		
+		// a null value marks a removal
+		private final Map<ByteBuffer, ByteBuffer> writes = new LinkedHashMap<>();
+		
+		private WriteBatch() {}
+		
+		public WriteBatch put(K key, V value) {
+			writes.put(keySerializer.serialize(key), valueSerializer.serialize(value));
+			return this;
+		}
+		
+		public WriteBatch remove(K key) {
+			writes.put(keySerializer.serialize(key), null);
+			return this;
+		}
+		
+		public int size() {
+			return writes.size();
+		}
+		
+		/**
+		 * Applies all updates in this batch, and clears it so it can be reused.
+		 * 
+		 * @return new root hash
+		 */
+		public ByteBuffer commit() {
+			ByteBuffer result = update(writes);
+			writes.clear();
+			return result;
+		}
+	}
 
 	public ByteBuffer getRootHash() {
 		return this.rootHash;
@@ -178,6 +359,138 @@ public class Trie<K,V>{
 		return this.store;
 	}
 	
+	NodeCodec getCodec() {
+		return this.codec;
+	}
+	
+	/**
+	 * @return cache of decoded nodes, null if node caching is disabled
+	 */
+	public LruCache<ByteBuffer, TrieNode> getNodeCache() {
+		return this.nodeCache;
+	}
+	
+	/**
+	 * @return cache of serialized key value pairs in current root, null if value caching is disabled
+	 */
+	public LruCache<ByteBuffer, ByteBuffer> getValueCache() {
+		return this.valueCache;
+	}
+	
+	/**
+	 * @param key
+	 * @return a merkle proof of the value of given key (or its absence) in current root
+	 */
+	public Proof prove(K key) {
+		return prove(this.rootHash, key);
+	}
+	
+	public Proof prove(ByteBuffer rootHash, K key) {
+		ByteBuffer serializedKey = keySerializer.serialize(key);
+		List<ByteBuffer> nodes = new ArrayList<>();
+		Proof.lookup(rootHash, serializedKey, hash -> {
+			ByteBuffer encoded = store.get(hash);
+			if (encoded != null) nodes.add(ByteBuffer.wrap(copyOf(encoded)));
+			return encoded;
+		}, codec);
+		return new Proof(serializedKey, nodes, codec);
+	}
+	
+	/**
+	 * @param keys
+	 * @return a single proof of values of all given keys in current root, that holds every 
+	 * node shared by their lookup paths only once
+	 */
+	public BatchProof proveAll(Collection<K> keys) {
+		return proveAll(this.rootHash, keys);
+	}
+	
+	public BatchProof proveAll(ByteBuffer rootHash, Collection<K> keys) {
+		List<ByteBuffer> serializedKeys = new ArrayList<>();
+		Map<ByteBuffer, ByteBuffer> visited = new HashMap<>();
+		List<ByteBuffer> nodes = new ArrayList<>();
+		
+		for (K key : keys) {
+			ByteBuffer serializedKey = keySerializer.serialize(key);
+			serializedKeys.add(serializedKey);
+			Proof.lookup(rootHash, serializedKey, hash -> {
+				ByteBuffer encoded = visited.get(hash);
+				if (encoded == null && (encoded = store.get(hash)) != null) {
+					// copy the key too, given hash is a scratch buffer
+					encoded = ByteBuffer.wrap(copyOf(encoded));
+					visited.put(ByteBuffer.wrap(copyOf(hash)), encoded);
+					nodes.add(encoded);
+				}
+				return encoded;
+			}, codec);
+		}
+		return new BatchProof(serializedKeys, nodes, codec);
+	}
+	
+	/**
+	 * Drops the reference this trie holds to given past root since it was committed, reclaiming 
+	 * every node that is no longer reachable from a retained root.
+	 * 
+	 * @param rootHash
+	 * @return number of references left to given root
+	 * @throws AssertionError if the store fails to commit, nothing is released then
+	 */
+	public int release(ByteBuffer rootHash) {
+		if (!(store instanceof RefCountedStore)) 
+			throw new UnsupportedOperationException("Store does not count references");
+		
+		RefCountedStore refCountedStore = (RefCountedStore) store;
+		if (rootHash.equals(this.rootHash) && refCountedStore.refCount(rootHash) <= 1)
+			throw new IllegalArgumentException("Can not release current root");
+		
+		int count;
+		try {
+			count = nodeCache == null ? refCountedStore.decrement(rootHash)
+					: refCountedStore.decrement(rootHash, nodeCache::remove);
+		} catch (RuntimeException e) {
+			store.rollback();
+			throw e;
+		}
+		
+		// persists deletes
+		if (!store.commit()) {
+			store.rollback();
+			throw new AssertionError("Could not commit release of " + hashToShortString(rootHash));
+		}
+		return count;
+	}
+	
+	/**
+	 * Every committed root is referenced once, if the store counts references
+	 */
+	private void retain(ByteBuffer rootHash) {
+		if (store instanceof RefCountedStore) ((RefCountedStore) store).increment(rootHash);
+	}
+	
+	/**
+	 * Creates an incremental pruner, that deletes every node of the store that is reachable neither
+	 * from given roots nor from the current root of this trie.
+	 *
+	 * Steps of the pruner should be interleaved with, not run concurrently to updates of this trie.
+	 * The store has to support {@link Store#remove(ByteBuffer)} and {@link Store#hashes()}.
+	 *
+	 * @param retainedRoots
+	 * @return
+	 */
+	public Pruner pruner(Collection<ByteBuffer> retainedRoots) {
+		return new Pruner(this, retainedRoots);
+	}
+
+	/**
+	 * Deletes every node of the store that is reachable neither from given roots nor from the current root
+	 *
+	 * @param retainedRoots
+	 * @return number of deleted nodes
+	 */
+	public long prune(Collection<ByteBuffer> retainedRoots) {
+		return pruner(retainedRoots).run();
+	}
+
 	protected List<TrieNode> nodes() {
 		return nodes(this.rootHash);
 	}
@@ -221,85 +534,461 @@ public class Trie<K,V>{
 				ByteBuffer bytes = node.getItem(i).asReadOnlyByteBuffer();
 				if (EMPTY.equals(bytes)) continue;
 				
-				try {
-					// get rid of nested nodes in branch nodes
-					TrieNode childNode = TrieNode.parseFrom(bytes);
-					if (NodeType.HASH != getNodeType(childNode)) continue; 
-					
-					path.add((byte) i);
-					nodesHelper(decodeToNode(node.getItem(i).asReadOnlyByteBuffer()), path, list);
-					path.remove(path.size()-1);
-					
-				} catch (InvalidProtocolBufferException e) {
-					throw new AssertionError("Should never be here");
-				}
+				// get rid of nested nodes in branch nodes
+				TrieNode childNode = codec.decode(bytes);
+				if (NodeType.HASH != getNodeType(childNode)) continue; 
+				
+				path.add((byte) i);
+				nodesHelper(decodeToNode(node.getItem(i).asReadOnlyByteBuffer()), path, list);
+				path.remove(path.size()-1);
 			}
 		}
 	}
 
+	/**
+	 * @return a lazy iterator over key value pairs of current root, in ascending order of serialized keys
+	 */
+	public TrieIterator<K,V> iterator() {
+		return iterator(this.rootHash);
+	}
+	
+	public TrieIterator<K,V> iterator(ByteBuffer rootHash) {
+		return new TrieIterator<>(this, decodeToNode(rootHash, true), null, null);
+	}
+	
+	/**
+	 * @param fromKey inclusive, null for no lower bound
+	 * @param toKey exclusive, null for no upper bound
+	 * @return a lazy iterator over key value pairs of current root within given range, in 
+	 * ascending order of serialized keys
+	 */
+	public TrieIterator<K,V> range(K fromKey, K toKey) {
+		return range(this.rootHash, fromKey, toKey);
+	}
+	
+	public TrieIterator<K,V> range(ByteBuffer rootHash, K fromKey, K toKey) {
+		return new TrieIterator<>(this, decodeToNode(rootHash, true), 
+				fromKey == null ? null : keySerializer.serialize(fromKey), 
+				toKey == null ? null : keySerializer.serialize(toKey));
+	}
+	
+	/**
+	 * @param prefix
+	 * @return a lazy iterator over key value pairs of current root whose serialized keys start 
+	 * with serialized prefix, in ascending order
+	 */
+	public TrieIterator<K,V> prefix(K prefix) {
+		return prefix(this.rootHash, prefix);
+	}
+	
+	public TrieIterator<K,V> prefix(ByteBuffer rootHash, K prefix) {
+		ByteBuffer fromKey = keySerializer.serialize(prefix);
+		return new TrieIterator<>(this, decodeToNode(rootHash, true), fromKey, successor(fromKey));
+	}
+	
+	/**
+	 * @param prefix
+	 * @return smallest key greater than every key starting with given prefix, null if there is none
+	 */
+	private static ByteBuffer successor(ByteBuffer prefix) {
+		byte[] bytes = copyOf(prefix);
+		for (int i = bytes.length - 1; i >= 0; i--) {
+			if (bytes[i] != (byte) 0xff) {
+				bytes[i]++;
+				return ByteBuffer.wrap(Arrays.copyOf(bytes, i + 1));
+			}
+		}
+		return null;
+	}
+	
+	Serializer<K> getKeySerializer() {
+		return keySerializer;
+	}
+	
+	Serializer<V> getValueSerializer() {
+		return valueSerializer;
+	}
+	
 	public Map<K,V> toMap() {
 		return toMap(this.rootHash);
 	}
 	
 	public Map<K,V> toMap(ByteBuffer rootHash) {
 		Map<K,V> results = new HashMap<>();
-		toMapHelper(decodeToNode(rootHash, true), new ArrayList<Byte>(), results);
+		forEach(rootHash, results::put);
 		return results;
 	}
 	
-	private void toMapHelper(TrieNode node, List<Byte> path, Map<K,V> map) {
-		NodeType type = getNodeType(node);
-		
-		if (type == NodeType.BLANK) 
-			return;
-		
-		int len = path.size();
-		if (type.isKeyValueType()) {
+	/**
+	 * Pushes every key value pair of current root to given action as it is reached, in ascending 
+	 * order of serialized keys. Only the path to the current pair is kept in memory.
+	 * 
+	 * @param action
+	 */
+	public void forEach(BiConsumer<? super K, ? super V> action) {
+		forEach(this.rootHash, action);
+	}
+	
+	public void forEach(ByteBuffer rootHash, BiConsumer<? super K, ? super V> action) {
+		iterator(rootHash).visitRemaining(action);
+	}
+	
+	/**
+	 * @return a lazy, sequential stream of key value pairs of current root, in ascending order of serialized keys.
+	 * It splits along branch nodes when made parallel.
+	 */
+	public Stream<Map.Entry<K,V>> stream() {
+		return stream(this.rootHash);
+	}
+	
+	public Stream<Map.Entry<K,V>> stream(ByteBuffer rootHash) {
+		return StreamSupport.stream(spliterator(rootHash), false);
+	}
+	
+	/**
+	 * Parallel traversal reads the store from many threads, which is safe for the stores 
+	 * in this package as long as no update runs at the same time.
+	 * 
+	 * @return a spliterator over key value pairs of current root, in ascending order of serialized keys
+	 */
+	public TrieSpliterator<K,V> spliterator() {
+		return spliterator(this.rootHash);
+	}
+	
+	public TrieSpliterator<K,V> spliterator(ByteBuffer rootHash) {
+		return new TrieSpliterator<>(this, decodeToNode(rootHash, true));
+	}
+	
+	private ByteBuffer update(ByteBuffer key, ByteBuffer value) {
+		try {
+			TrieNode newRootNode = updateHelper(rootNode, from(key), value);
 			
-			NibbleString key = unpack(node.getItem(0).asReadOnlyByteBuffer());
-			for (Byte b : key) path.add(b);
+			if (commit(newRootNode) && valueCache != null) 
+				valueCache.put(key, value);
 			
-			if (isTerminal(node.getItem(0).asReadOnlyByteBuffer())) {
-				map.put(keySerializer.deserialize(toByteBuffer(path)), 
-						valueSerializer.deserialize(node.getItem(1).asReadOnlyByteBuffer()));
-				
-			} else {
-				toMapHelper(decodeToNode(node.getItem(1).asReadOnlyByteBuffer()), path, map);
+		} catch (RuntimeException e) {
+			store.rollback(); // leave nothing behind from a failed update
+			throw e;
+		}
+		
+		return this.rootHash;
+	}
+	
+	/**
+	 * Encodes given new root node, and commits it along with everything else put to the 
+	 * store by current update. Rolls back if commit fails.
+	 * 
+	 * @param newRootNode
+	 * @return true if new root node is committed and became the current root
+	 */
+	private boolean commit(TrieNode newRootNode) {
+		ByteBuffer newRootHash = encodeNode(newRootNode, true);
+		retain(newRootHash);
+		
+		if (!store.commit()) {
+			store.rollback();
+			return false;
+		}
+		
+		this.rootNode = newRootNode;
+		this.rootHash = newRootHash;
+		return true;
+	}
+	
+	/**
+	 * Applies all given writes on an in-memory copy of the touched nodes, then 
+	 * encodes every touched node exactly once and commits.
+	 * 
+	 * @param writes serialized key, value pairs. null values represent removals
+	 * @return new root hash
+	 */
+	private ByteBuffer update(Map<ByteBuffer, ByteBuffer> writes) {
+		if (writes.isEmpty()) return this.rootHash;
+		
+		try {
+			DirtyNode root = EMPTY_NODE.equals(rootNode) ? null : DirtyNode.decoded(rootNode);
+			for (Map.Entry<ByteBuffer, ByteBuffer> e : writes.entrySet()) {
+				if (e.getValue() == null)
+					root = delete(root, from(e.getKey()));
+				else
+					root = insert(root, from(e.getKey()), wrap(e.getValue()));
 			}
 			
-			len = path.size() - len; // number of nibbles to remove
-			for (int i=0; i<len; i++) path.remove(path.size()-1);
-			
-		} else if (type == NodeType.BRANCH) {
-			
-			if (!EMPTY.equals(node.getItem(16).asReadOnlyByteBuffer())) {
-				map.put(keySerializer.deserialize(toByteBuffer(path)), 
-						valueSerializer.deserialize(node.getItem(16).asReadOnlyByteBuffer()));
+			if (root != null && hashingPool != null && countDirty(root) >= parallelThreshold) {
+				// hash sub trees in parallel, nodes are persisted here by the caller thread
+				Map<ByteBuffer, ByteBuffer> encodedNodes = hashingPool.invoke(new EncodeTask(root, false));
+				for (Map.Entry<ByteBuffer, ByteBuffer> e : encodedNodes.entrySet()) {
+					store.put(e.getKey(), e.getValue());
+				}
 			}
 			
-			for (int i=0; i<16; i++) {
-				if (!EMPTY.equals(node.getItem(i).asReadOnlyByteBuffer())) {
-					path.add((byte) i);
-					toMapHelper(decodeToNode(node.getItem(i).asReadOnlyByteBuffer()), path, map);
-					path.remove(path.size()-1);
+			TrieNode newRootNode = root == null ? EMPTY_NODE : toTrieNode(root, store::put);
+			
+			if (commit(newRootNode) && valueCache != null) {
+				for (Map.Entry<ByteBuffer, ByteBuffer> e : writes.entrySet()) {
+					if (e.getValue() == null) valueCache.remove(e.getKey());
+					else valueCache.put(e.getKey(), e.getValue());
 				}
 			}
+			
+		} catch (RuntimeException e) {
+			store.rollback(); // leave nothing behind from a failed update
+			throw e;
 		}
 		
+		return this.rootHash;
 	}
 	
-	private ByteBuffer update(ByteBuffer key, ByteBuffer value) {
-		TrieNode newRootNode = updateHelper(rootNode, from(key), value);
-		ByteBuffer newRootHash = encodeNode(newRootNode, true);
+	/**
+	 * In-memory equivalent of {@link #updateHelper(TrieNode, NibbleString, ByteBuffer)}.
+	 * Nothing is encoded or persisted here.
+	 * 
+	 * @param node node to insert into, null if blank
+	 * @param path NibbleString (not compact)
+	 * @param value Value to be inserted
+	 * 
+	 * @return the new version of self node
+	 */
+	private DirtyNode insert(DirtyNode node, NibbleString path, ByteString value) {
+		if (node == null) 
+			return DirtyNode.leaf(path, value);
+		
+		load(node).encoded = null; // every node on the path of an insertion changes
 		
-		if (store.commit()) {
-			this.rootNode = newRootNode;
-			this.rootHash = newRootHash;
+		if (node.type == NodeType.BRANCH) {
+			if (path.size() == 0) {
+				node.value = value;
+			} else {
+				int keyIndex = path.nibbleAsByte(0);
+				node.children[keyIndex] = insert(node.children[keyIndex], path.substring(1), value);
+			}
+			return node;
+		}
+		
+		NibbleString key = node.key;
+		
+		// find longest common prefix
+		int prefixLength = key.commonPrefixLength(path);
+		
+		NibbleString remainingPath = path.substring(prefixLength);
+		NibbleString remainingKey = key.substring(prefixLength);
+		
+		if (remainingKey.size() == 0) {
+			if (node.type == NodeType.EXTENSION) {
+				node.children[0] = insert(node.children[0], remainingPath, value);
+				return node;
+			} else if (remainingPath.size() == 0) {
+				node.value = value;
+				return node;
+			}
+		}
+		
+		DirtyNode branch = DirtyNode.branch();
+		if (remainingKey.size() == 0) {
+			// a leaf with a key that is a prefix of path
+			branch.value = node.value;
+		} else if (remainingKey.size() == 1 && node.type == NodeType.EXTENSION) {
+			branch.children[remainingKey.nibbleAsByte(0)] = node.children[0];
 		} else {
-			store.rollback();
+			node.key = remainingKey.substring(1);
+			branch.children[remainingKey.nibbleAsByte(0)] = node;
 		}
 		
-		return this.rootHash;
+		if (remainingPath.size() == 0) {
+			branch.value = value;
+		} else {
+			branch.children[remainingPath.nibbleAsByte(0)] = DirtyNode.leaf(remainingPath.substring(1), value);
+		}
+		
+		return prefixLength > 0 ? DirtyNode.extension(key.substring(0, prefixLength), branch) : branch;
+	}
+	
+	/**
+	 * Removes the value at given path, collapsing nodes on the way back up so the trie 
+	 * stays in the only shape it could have had without the removed key: 
+	 * 
+	 * - a branch left with no value and a single child is merged into its child
+	 * - a branch left with only a value becomes a leaf
+	 * - an extension whose child is no longer a branch is merged into its child
+	 * 
+	 * @param node node to remove from, null if blank
+	 * @param path NibbleString (not compact)
+	 * 
+	 * @return the new version of self node, same instance if nothing was removed
+	 */
+	private DirtyNode delete(DirtyNode node, NibbleString path) {
+		if (node == null) 
+			return null;
+		
+		load(node);
+		
+		if (node.type == NodeType.BRANCH) {
+			if (path.size() == 0) {
+				if (node.value.isEmpty()) return node;
+				node.value = ByteString.EMPTY;
+			} else {
+				int keyIndex = path.nibbleAsByte(0);
+				DirtyNode child = node.children[keyIndex];
+				DirtyNode newChild = delete(child, path.substring(1));
+				if (isUnchanged(child, newChild)) return node;
+				node.children[keyIndex] = newChild;
+			}
+			node.encoded = null;
+			return collapse(node);
+		}
+		
+		NibbleString key = node.key;
+		if (!path.startsWith(key)) 
+			return node; // key does not exist
+		
+		if (node.type == NodeType.LEAF) 
+			return path.size() == key.size() ? null : node;
+		
+		DirtyNode child = node.children[0];
+		DirtyNode newChild = delete(child, path.substring(key.size()));
+		if (isUnchanged(child, newChild)) return node;
+		
+		node.encoded = null;
+		if (newChild == null) return null;
+		if (load(newChild).type == NodeType.BRANCH) {
+			node.children[0] = newChild;
+			return node;
+		}
+		
+		// child collapsed into a leaf or an extension
+		newChild.key = key.concat(newChild.key);
+		newChild.encoded = null;
+		return newChild;
+	}
+	
+	private static boolean isUnchanged(DirtyNode child, DirtyNode newChild) {
+		return child == newChild && (child == null || child.encoded != null);
+	}
+	
+	/**
+	 * @param branch a branch node that just lost a value or a child
+	 * @return collapsed version of given branch node if it is no longer needed
+	 */
+	private DirtyNode collapse(DirtyNode branch) {
+		int count = 0, index = -1;
+		for (int i = 0; i < 16; i++) {
+			if (branch.children[i] != null) {
+				count++;
+				index = i;
+			}
+		}
+		
+		if (count == 0) 
+			return branch.value.isEmpty() ? null : DirtyNode.leaf(EMPTY_NIBBLE, branch.value);
+		
+		if (count > 1 || !branch.value.isEmpty()) 
+			return branch;
+		
+		NibbleString prefix = NibbleString.of((byte) index);
+		DirtyNode child = load(branch.children[index]);
+		if (child.type == NodeType.BRANCH) 
+			return DirtyNode.extension(prefix, child);
+		
+		child.key = prefix.concat(child.key);
+		child.encoded = null;
+		return child;
+	}
+	
+	private DirtyNode load(DirtyNode node) {
+		if (!node.isLoaded()) 
+			node.fill(decodeToNode(node.encoded.asReadOnlyByteBuffer()));
+		return node;
+	}
+	
+	/**
+	 * @param node
+	 * @param persist receives every newly encoded (hash, node) pair
+	 * @return bytes given node is referenced with in its parent
+	 */
+	private ByteString encode(DirtyNode node, BiConsumer<ByteBuffer, ByteBuffer> persist) {
+		if (node == null) return ByteString.EMPTY;
+		if (node.encoded == null) 
+			node.encoded = wrap(encodeNode(toTrieNode(node, persist), false, persist));
+		return node.encoded;
+	}
+	
+	private TrieNode toTrieNode(DirtyNode node, BiConsumer<ByteBuffer, ByteBuffer> persist) {
+		switch (node.type) {
+		case LEAF:
+			return TrieNode.newBuilder()
+					.addItem(wrap(pack(node.key, true)))
+					.addItem(node.value)
+					.build();
+		case EXTENSION:
+			return TrieNode.newBuilder()
+					.addItem(wrap(pack(node.key, false)))
+					.addItem(encode(node.children[0], persist))
+					.build();
+		case BRANCH:
+			TrieNode.Builder builder = TrieNode.newBuilder(BRANCH_NODE_PROTOTYPE);
+			for (int i = 0; i < 16; i++) {
+				builder.setItem(i, encode(node.children[i], persist));
+			}
+			return builder.setItem(16, node.value).build();
+		default:
+			throw new AssertionError("Not possible");
+		}
+	}
+	
+	/**
+	 * Counts nodes that need to be encoded in given sub tree, and remembers it in each node.
+	 * 
+	 * @param node
+	 * @return
+	 */
+	private int countDirty(DirtyNode node) {
+		if (node == null || node.encoded != null) return 0;
+		
+		int count = 1;
+		if (node.children != null) {
+			for (DirtyNode child : node.children) count += countDirty(child);
+		}
+		return node.dirtySize = count;
+	}
+	
+	/**
+	 * Encodes the dirty children of a node (and the node itself unless it is the root) 
+	 * forking a task per child as long as sub trees are big enough. 
+	 * 
+	 * Does not touch the store (which is not thread safe), instead returns newly 
+	 * encoded (hash, node) pairs to be persisted by the caller.
+	 */
+	private class EncodeTask extends RecursiveTask<Map<ByteBuffer, ByteBuffer>> {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final DirtyNode node;
+		private final boolean encodeSelf;
+		
+		EncodeTask(DirtyNode node, boolean encodeSelf) {
+			this.node = node;
+			this.encodeSelf = encodeSelf;
+		}
+		
+		@Override
+		protected Map<ByteBuffer, ByteBuffer> compute() {
+			Map<ByteBuffer, ByteBuffer> encodedNodes = new HashMap<>();
+			
+			if (node.children == null || (encodeSelf && node.dirtySize < parallelThreshold)) {
+				encode(node, encodedNodes::put);
+				return encodedNodes;
+			}
+			
+			List<EncodeTask> tasks = new ArrayList<>();
+			for (DirtyNode child : node.children) {
+				if (child != null && child.encoded == null) tasks.add(new EncodeTask(child, true));
+			}
+			invokeAll(tasks);
+			for (EncodeTask task : tasks) encodedNodes.putAll(task.join());
+			
+			if (encodeSelf) encode(node, encodedNodes::put);
+			return encodedNodes;
+		}
 	}
 	
 	/**
@@ -318,8 +1007,8 @@ public class Trie<K,V>{
 		
 		if (type == NodeType.BLANK) {
 			return TrieNode.newBuilder()
-					.addItem(ByteString.copyFrom(pack(path, true)))
-					.addItem(ByteString.copyFrom(value))
+					.addItem(wrap(pack(path, true)))
+					.addItem(wrap(value))
 					.build();
 		
 		} else if (type == NodeType.BRANCH) {
@@ -327,12 +1016,12 @@ public class Trie<K,V>{
 			TrieNode.Builder builder = TrieNode.newBuilder(node); 
 			
 			if (path.size() == 0)
-				builder.setItem(16, ByteString.copyFrom(value));
+				builder.setItem(16, wrap(value));
 			else {
 				int keyIndex = path.nibbleAsByte(0);
 				TrieNode newNode = decodeToNode(node.getItem(keyIndex).asReadOnlyByteBuffer());
 				newNode = updateHelper(newNode, path.substring(1), value);
-				builder.setItem(keyIndex, ByteString.copyFrom(encodeNode(newNode)));
+				builder.setItem(keyIndex, wrap(encodeNode(newNode)));
 			}
 			return builder.build();
 			
@@ -348,10 +1037,7 @@ public class Trie<K,V>{
 		NibbleString key = unpack(node.getItem(0).asReadOnlyByteBuffer());
 		
 		// find longest common prefix
-		int minKeyLength = Math.min(key.size(), path.size());
-		int i=0; 
-		while (i < minKeyLength && key.nibbleAsChar(i) == path.nibbleAsChar(i)) i++;
-		int prefixLength = i;
+		int prefixLength = key.commonPrefixLength(path);
 		
 		NibbleString remainingPath = path.substring(prefixLength);
 		NibbleString remainingKey = key.substring(prefixLength);
@@ -359,7 +1045,7 @@ public class Trie<K,V>{
 		TrieNode newNode;
 		if (remainingPath.size() == 0 && remainingKey.size() == 0) {
 			if (type == NodeType.LEAF) {
-				return TrieNode.newBuilder(node).setItem(1, ByteString.copyFrom(value)).build();
+				return TrieNode.newBuilder(node).setItem(1, wrap(value)).build();
 			} else {
 				newNode = updateHelper(decodeToNode(node.getItem(1).asReadOnlyByteBuffer()), remainingPath, value);
 			}
@@ -371,13 +1057,13 @@ public class Trie<K,V>{
 			} else {
 				
 				TrieNode leaf = TrieNode.newBuilder()
-						.addItem(ByteString.copyFrom(pack(remainingPath.substring(1), true)))
-						.addItem(ByteString.copyFrom(value))
+						.addItem(wrap(pack(remainingPath.substring(1), true)))
+						.addItem(wrap(value))
 						.build();
 				ByteBuffer leafEncoded = encodeNode(leaf);
 				
 				newNode = TrieNode.newBuilder(BRANCH_NODE_PROTOTYPE)
-						.setItem(remainingPath.nibbleAsByte(0), ByteString.copyFrom(leafEncoded))
+						.setItem(remainingPath.nibbleAsByte(0), wrap(leafEncoded))
 						.setItem(16, node.getItem(1))
 						.build();
 			}
@@ -393,24 +1079,24 @@ public class Trie<K,V>{
 						type == NodeType.LEAF);
 				
 				TrieNode child = TrieNode.newBuilder()
-						.addItem(ByteString.copyFrom(packedChildKey))
+						.addItem(wrap(packedChildKey))
 						.addItem(node.getItem(1))
 						.build();
 				
-				builder.setItem(remainingKey.nibbleAsByte(0), ByteString.copyFrom(encodeNode(child)));
+				builder.setItem(remainingKey.nibbleAsByte(0), wrap(encodeNode(child)));
 			}
 			
 			if (remainingPath.size() == 0) {
-				builder.setItem(16, ByteString.copyFrom(value));
+				builder.setItem(16, wrap(value));
 			} else {
 				ByteBuffer packedRemainingPath = pack(remainingPath.substring(1), true);
 				
 				TrieNode leaf = TrieNode.newBuilder()
-						.addItem(ByteString.copyFrom(packedRemainingPath))
-						.addItem(ByteString.copyFrom(value))
+						.addItem(wrap(packedRemainingPath))
+						.addItem(wrap(value))
 						.build();
 				
-				builder.setItem(remainingPath.nibbleAsByte(0), ByteString.copyFrom(encodeNode(leaf)));
+				builder.setItem(remainingPath.nibbleAsByte(0), wrap(encodeNode(leaf)));
 			}
 			
 			newNode = builder.build();
@@ -418,8 +1104,8 @@ public class Trie<K,V>{
 		
 		if (prefixLength > 0) {
 			return TrieNode.newBuilder()
-					.addItem(ByteString.copyFrom(pack(key.substring(0, prefixLength), false)))
-					.addItem(ByteString.copyFrom(encodeNode(newNode)))
+					.addItem(wrap(pack(key.substring(0, prefixLength), false)))
+					.addItem(wrap(encodeNode(newNode)))
 					.build();
 		} else {
 			return newNode;
@@ -430,10 +1116,15 @@ public class Trie<K,V>{
 		return encodeNode(node, false);
 	}
 	
+	private ByteBuffer encodeNode(TrieNode node, boolean hash32Bytes) {
+		return encodeNode(node, hash32Bytes, store::put);
+	}
+	
 	/**
-	 * Encodes a given node into a ByteString using Protocol Buffers. 
+	 * Encodes a given node into a ByteString using the codec of this trie. 
 	 * returns the resulting ByteString if length <= 34, else stores it and returns 
-	 * its hash encoded in a hash node.
+	 * its hash encoded in a hash node. A node is serialized once, and the same bytes 
+	 * are hashed and stored.
 	 * 
 	 * Only exception to this rule is, if the node to be encoded is the root node, 
 	 * in which case, a raw hash is generated regardless of length
@@ -441,25 +1132,30 @@ public class Trie<K,V>{
 	 * Returned ByteBuffer limit is always <= 34.
 	 * 
 	 * @param node
+	 * @param hash32Bytes
+	 * @param persist receives (hash, encoded) if node is stored
 	 * @return
 	 */
-	private ByteBuffer encodeNode(TrieNode node, boolean hash32Bytes) {
+	private ByteBuffer encodeNode(TrieNode node, boolean hash32Bytes, BiConsumer<ByteBuffer, ByteBuffer> persist) {
 		
 		if (EMPTY_NODE.equals(node)) return EMPTY_NODE_BYTES;
-		ByteBuffer encoded = ByteBuffer.wrap(node.toByteArray());
+		ByteBuffer encoded = ByteBuffer.wrap(codec.encode(node));
 		if (encoded.limit() < 34 && !hash32Bytes) return encoded;
-		else {
-			ByteBuffer hash = sha256(encoded);
-			ByteBuffer hashNode = ByteBuffer.wrap(
-					TrieNode.newBuilder()
-						// careful copyFrom changes buffer position hence the use of .array()
-						.addItem(ByteString.copyFrom(hash.array())) 
-						.build()
-						.toByteArray());
-			store.put(hash, encoded);
-			
-			return hash32Bytes ? hash : hashNode;
-		}
+		
+		ByteBuffer hash = sha256(encoded);
+		persist.accept(hash, encoded);
+		return hash32Bytes ? hash : ByteBuffer.wrap(codec.encodeHashNode(hash));
+	}
+	
+	/**
+	 * Wraps bytes without copying them. Only for buffers nobody writes to anymore: 
+	 * freshly encoded or packed bytes, and serialized values (see {@link Serializer}).
+	 * 
+	 * @param bytes
+	 * @return a ByteString of remaining bytes, position of given buffer is left untouched
+	 */
+	private static ByteString wrap(ByteBuffer bytes) {
+		return UnsafeByteOperations.unsafeWrap(bytes);
 	}
 	
 	private TrieNode decodeToNode(ByteBuffer bytes) {
@@ -485,26 +1181,45 @@ public class Trie<K,V>{
 	 * @param bytes
 	 * @return
 	 */
-	private TrieNode decodeToNode(ByteBuffer bytes, boolean hash32Bytes) {
+	TrieNode decodeToNode(ByteBuffer bytes, boolean hash32Bytes) {
 		
 		if (EMPTY_NODE_BYTES.equals(bytes)) return EMPTY_NODE;
 		
 		try {
 			if (hash32Bytes) 
-				return TrieNode.parseFrom(store.get(bytes));
+				return fetchNode(bytes);
 			
-			TrieNode node = TrieNode.parseFrom(bytes);
+			TrieNode node = codec.decode(bytes);
 			if (NodeType.HASH == getNodeType(node)) 
-				return TrieNode.parseFrom(store.get(node.getItem(0).asReadOnlyByteBuffer()));
+				return fetchNode(node.getItem(0).asReadOnlyByteBuffer());
 			else
 				return node;
 			
-		} catch (InvalidProtocolBufferException e) {
+		} catch (IllegalArgumentException e) {
 			throw new AssertionError("Invalid TrieNode bytes. This should never happen");
 		}
 		
 	}
 	
+	/**
+	 * Fetches the node stored with given 32 byte hash, going through the node cache if there is one.
+	 * 
+	 * @param hash
+	 * @return
+	 */
+	private TrieNode fetchNode(ByteBuffer hash) {
+		if (nodeCache == null) 
+			return codec.decode(store.get(hash));
+		
+		TrieNode node = nodeCache.get(hash);
+		if (node == null) {
+			node = codec.decode(store.get(hash));
+			// copy the key, given hash might be a view of a buffer we do not own
+			nodeCache.put(ByteBuffer.wrap(copyOf(hash)), node);
+		}
+		return node;
+	}
+	
 	/**
 	 * Returns the stored value stored in given path
 	 * 
@@ -533,7 +1248,7 @@ public class Trie<K,V>{
 		}
 		
 		if (type == NodeType.EXTENSION) {
-			if (key.equals(path.substring(0, key.size())))
+			if (path.startsWith(key))
 				return getHelper(decodeToNode(node.getItem(1).asReadOnlyByteBuffer()), path.substring(key.size()));
 			else
 				return EMPTY_NODE_BYTES;
@@ -543,123 +1258,75 @@ public class Trie<K,V>{
 	}
 
 	/**
-	 * Given an old root hash, finds the differences between the two states
+	 * Given an old root hash, finds the differences between the two states. Sub trees that are
+	 * shared by both roots are skipped without being read, see {@link TrieDiff}
 	 *
 	 * @param oldRoot an older rootHash
 	 * @param remove keys that have been changed and their old values
 	 * @param update keys in currentRoot that either don't exist in oldRoot, or has a different value in currentRoot.
 	 */
 	public void difference(ByteBuffer oldRoot, Map<K,V> remove, Map<K,V> update) {
-		PriorityQueue<Pair> pqOld = new PriorityQueue<>();
-		PriorityQueue<Pair> pqNew = new PriorityQueue<>();
-
-		pqOld.offer(new Pair(Collections.emptyList(), decodeToNode(oldRoot, true)));
-		pqNew.offer(new Pair(Collections.emptyList(), decodeToNode(this.rootHash, true)));
-
-		while (!pqOld.isEmpty() || !pqNew.isEmpty()) {
-			Pair pOld = pqOld.isEmpty() ? Pair.DUMMY : pqOld.poll();
-			Pair pNew = pqNew.isEmpty() ? Pair.DUMMY : pqNew.poll();
-
-			int compare = pOld.compareTo(pNew);
-			if (compare < 0) {
-				if (pNew != Pair.DUMMY) pqNew.offer(pNew);
-
-				ByteBuffer value = getImmediateValueOfNode(pOld.node);
-				if (!EMPTY.equals(value)) {
-					remove.put(keySerializer.deserialize(toByteBuffer(pOld.path)),
-							valueSerializer.deserialize(value));
-				}
-				enqueueChildren(pqNew, pNew.path, pNew.node);
-
-			} else  if (compare > 0) {
-				if (pOld != Pair.DUMMY) pqOld.offer(pOld);
-
-				ByteBuffer value = getImmediateValueOfNode(pNew.node);
-				if (!EMPTY.equals(value)) {
-					update.put(keySerializer.deserialize(toByteBuffer(pNew.path)),
-							valueSerializer.deserialize(value));
-				}
-				enqueueChildren(pqNew, pNew.path, pNew.node);
-
-			} else { // pOld.equals(pNew)
-				if (pOld.node.equals(pNew.node)) continue; // both path and nodes are same (best case)
-
-				ByteBuffer value1 = getImmediateValueOfNode(pOld.node);
-				ByteBuffer value2 = getImmediateValueOfNode(pNew.node);
+		diff(oldRoot, new DiffVisitor<K,V>() {
+			@Override
+			public void onAdded(K key, Supplier<V> value) {
+				update.put(key, value.get());
+			}
 
-				if (!value1.equals(value2)) {
-					if (!EMPTY.equals(value1)) {
-						remove.put(keySerializer.deserialize(toByteBuffer(pOld.path)), valueSerializer.deserialize(value1));
-					}
-					if (!EMPTY.equals(value2)) {
-						update.put(keySerializer.deserialize(toByteBuffer(pNew.path)), valueSerializer.deserialize(value2));
-					}
-				}
+			@Override
+			public void onRemoved(K key, Supplier<V> oldValue) {
+				remove.put(key, oldValue.get());
+			}
 
-				// enqueue children
-				enqueueChildren(pqOld, pOld.path, pOld.node);
-				enqueueChildren(pqNew, pNew.path, pNew.node);
+			@Override
+			public void onChanged(K key, Supplier<V> oldValue, Supplier<V> newValue) {
+				remove.put(key, oldValue.get());
+				update.put(key, newValue.get());
 			}
-		}
+		});
 	}
 
-	private void enqueueChildren(PriorityQueue<Pair> pq, List<Byte> path, TrieNode node) {
-		NodeType nodeType = getNodeType(node);
-		if (nodeType.isKeyValueType()) {
-			NibbleString key = NibbleString.unpack(node.getItem(0).asReadOnlyByteBuffer());
-			ByteBuffer value = node.getItem(1).asReadOnlyByteBuffer();
-
-			if (isTerminal(node.getItem(0).asReadOnlyByteBuffer())) {
-				if (!EMPTY_NIBBLE.equals(key)) {
-					// a terminal node with some additional key, normalize and requeue
-					List<Byte> newPath = new ArrayList<>(path);
-					for (Byte b : key) newPath.add(b);
-
-					TrieNode normalizedNode = TrieNode.newBuilder()
-							.addItem(ByteString.copyFrom(pack(EMPTY_NIBBLE, true)))
-							.addItem(ByteString.copyFrom(value))
-							.build();
-
-					pq.offer(new Pair(newPath, normalizedNode));
-				}
-			} else {
-				// extension node (add key to path and queue child node)
-				List<Byte> newPath = new ArrayList<>(path);
-				for (Byte b : key) newPath.add(b);
-				pq.offer(new Pair(newPath, decodeToNode(value)));
-			}
-		} else if (nodeType == NodeType.BRANCH) {
-			// branch node
-			// traverse and queue children
-			for (int i = 0; i < 16; i++) {
-				if (EMPTY.equals(node.getItem(i).asReadOnlyByteBuffer())) continue;
-				List<Byte> newPath = new ArrayList<>(path);
-				newPath.add((byte) i);
-				pq.offer(new Pair(newPath, decodeToNode(node.getItem(i).asReadOnlyByteBuffer())));
-			}
-		}
+	/**
+	 * Streams differences between given old root and current root to given visitor, in key order
+	 *
+	 * @param oldRoot an older rootHash
+	 * @param visitor
+	 */
+	public void diff(ByteBuffer oldRoot, DiffVisitor<K,V> visitor) {
+		diff(oldRoot, this.rootHash, visitor);
 	}
 
 	/**
-	 * Returns the immediate value associated with given node if
-	 *  * node is a leaf node with no key extension (key: 20)
-	 *  * node is a branch node with a value
+	 * Streams differences between two roots in the store to given visitor, in key order
 	 *
-	 * @param node
-	 * @return empty bytebuffer otherwise
-	 */
-	private ByteBuffer getImmediateValueOfNode(TrieNode node) {
-		NodeType nodeType = getNodeType(node);
-		if (nodeType.isKeyValueType()) { // leaf node with no key extension
-			NibbleString key = NibbleString.unpack(node.getItem(0).asReadOnlyByteBuffer());
-			if (isTerminal(node.getItem(0).asReadOnlyByteBuffer()) && EMPTY_NIBBLE.equals(key)) {
-				return node.getItem(1).asReadOnlyByteBuffer();
-			}
-		} else if (nodeType == NodeType.BRANCH) {
-			return node.getItem(16).asReadOnlyByteBuffer();
-		}
-		return EMPTY;
+	 * @param oldRoot
+	 * @param newRoot
+	 * @param visitor
+	 */
+	public void diff(ByteBuffer oldRoot, ByteBuffer newRoot, DiffVisitor<K,V> visitor) {
+		TrieDiff.diff(this, oldRoot, newRoot, (key, oldValue, newValue) -> {
+			K k = keySerializer.deserialize(key);
+			if (oldValue == null) visitor.onAdded(k, () -> valueSerializer.deserialize(newValue.duplicate()));
+			else if (newValue == null) visitor.onRemoved(k, () -> valueSerializer.deserialize(oldValue.duplicate()));
+			else visitor.onChanged(k,
+					() -> valueSerializer.deserialize(oldValue.duplicate()),
+					() -> valueSerializer.deserialize(newValue.duplicate()));
+		});
 	}
 
+	/**
+	 * Streams differences between two roots in the store to given visitor, in key order, without
+	 * deserializing keys or values. Handy for shipping deltas to a replica as they are.
+	 *
+	 * @param oldRoot
+	 * @param newRoot
+	 * @param visitor receives serialized keys and values
+	 */
+	public void diffSerialized(ByteBuffer oldRoot, ByteBuffer newRoot, DiffVisitor<ByteBuffer, ByteBuffer> visitor) {
+		TrieDiff.diff(this, oldRoot, newRoot, (key, oldValue, newValue) -> {
+			if (oldValue == null) visitor.onAdded(key, () -> newValue.duplicate());
+			else if (newValue == null) visitor.onRemoved(key, () -> oldValue.duplicate());
+			else visitor.onChanged(key, () -> oldValue.duplicate(), () -> newValue.duplicate());
+		});
+	}
 
 }
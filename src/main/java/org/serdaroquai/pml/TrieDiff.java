@@ -0,0 +1,194 @@
+package org.serdaroquai.pml;
+
+import static org.serdaroquai.pml.NibbleString.unpack;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.serdaroquai.pml.NodeProto.TrieNode;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Structural diff of two roots, that walks both tries side by side and compares child references
+ * (hashes, or inlined nodes) before decoding anything. Sub trees with identical references are
+ * skipped without touching the store, so only nodes on paths that changed are visited.
+ *
+ * Where the two tries are shaped differently at the same path (say a leaf on one side and a
+ * branch on the other) the leaf or extension is treated as a branch with a single child, one
+ * nibble at a time, until shapes line up again.
+ *
+ * Differences are reported in ascending order of serialized keys.
+ *
+ * @author tr1b6162
+ *
+ */
+final class TrieDiff {
+
+	interface Visitor {
+		/**
+		 * @param key serialized key
+		 * @param oldValue serialized value in old root, null if it was not there
+		 * @param newValue serialized value in new root, null if it is not there
+		 */
+		void visit(ByteBuffer key, ByteBuffer oldValue, ByteBuffer newValue);
+	}
+
+	/**
+	 * A node seen from a path, possibly part way through its key
+	 */
+	private static final class View {
+		static final View BLANK = new View(Common.EMPTY_NODE, NodeType.BLANK, Common.EMPTY_NIBBLE, 0);
+
+		final TrieNode node;
+		final NodeType type;
+		final NibbleString key; // rest of key of a leaf or extension
+		final int consumed;     // nibbles of key already on the path
+
+		View(TrieNode node, NodeType type, NibbleString key, int consumed) {
+			this.node = node;
+			this.type = type;
+			this.key = key;
+			this.consumed = consumed;
+		}
+
+		static View of(TrieNode node) {
+			NodeType type = Common.getNodeType(node);
+			switch (type) {
+			case BLANK:
+				return BLANK;
+			case LEAF:
+			case EXTENSION:
+				return new View(node, type, unpack(node.getItem(0).asReadOnlyByteBuffer()), 0);
+			default:
+				return new View(node, type, Common.EMPTY_NIBBLE, 0);
+			}
+		}
+	}
+
+	private final Trie<?,?> trie;
+	private final Visitor visitor;
+	private byte[] path = new byte[64]; // one nibble per byte
+	private int pathLength;
+
+	private TrieDiff(Trie<?,?> trie, Visitor visitor) {
+		this.trie = trie;
+		this.visitor = visitor;
+	}
+
+	/**
+	 * Reports every key whose value differs between given roots of given trie's store
+	 */
+	static void diff(Trie<?,?> trie, ByteBuffer oldRoot, ByteBuffer newRoot, Visitor visitor) {
+		if (oldRoot.equals(newRoot)) return;
+
+		TrieDiff diff = new TrieDiff(trie, visitor);
+		diff.diff(View.of(trie.decodeToNode(oldRoot, true)), View.of(trie.decodeToNode(newRoot, true)));
+	}
+
+	private void diff(View a, View b) {
+		if (a.type == NodeType.BLANK && b.type == NodeType.BLANK) return;
+		if (a.type == NodeType.BLANK) {
+			emitAll(b, false);
+			return;
+		}
+		if (b.type == NodeType.BLANK) {
+			emitAll(a, true);
+			return;
+		}
+		if (a.node == b.node && a.consumed == b.consumed) return;
+
+		if (a.type != NodeType.BRANCH && b.type != NodeType.BRANCH && a.type == b.type && a.key.equals(b.key)) {
+			int length = pathLength;
+			append(a.key);
+			if (a.type == NodeType.LEAF) {
+				emitIfChanged(a.node.getItem(1), b.node.getItem(1));
+			} else if (!a.node.getItem(1).equals(b.node.getItem(1))) {
+				diff(decode(a.node.getItem(1)), decode(b.node.getItem(1)));
+			}
+			pathLength = length;
+			return;
+		}
+
+		// compare as branch nodes, one nibble at a time
+		emitIfChanged(valueOf(a), valueOf(b));
+
+		boolean branches = a.type == NodeType.BRANCH && b.type == NodeType.BRANCH;
+		for (int i = 0; i < 16; i++) {
+			View childA, childB;
+			if (branches) {
+				ByteString refA = a.node.getItem(i), refB = b.node.getItem(i);
+				if (refA.equals(refB)) continue; // identical sub trees, nothing to decode
+				childA = decode(refA);
+				childB = decode(refB);
+			} else {
+				childA = child(a, i);
+				childB = child(b, i);
+			}
+
+			append(i);
+			diff(childA, childB);
+			pathLength--;
+		}
+	}
+
+	/**
+	 * @return child of given view at given nibble, as if it were a branch node
+	 */
+	private View child(View view, int nibble) {
+		if (view.type == NodeType.BRANCH) return decode(view.node.getItem(nibble));
+		if (view.key.size() == 0 || view.key.nibbleAsByte(0) != nibble) return View.BLANK;
+
+		if (view.type == NodeType.EXTENSION && view.key.size() == 1) return decode(view.node.getItem(1));
+		return new View(view.node, view.type, view.key.substring(1), view.consumed + 1);
+	}
+
+	/**
+	 * @return value of given view at current path, empty if there is none
+	 */
+	private static ByteString valueOf(View view) {
+		if (view.type == NodeType.BRANCH) return view.node.getItem(16);
+		if (view.type == NodeType.LEAF && view.key.size() == 0) return view.node.getItem(1);
+		return ByteString.EMPTY;
+	}
+
+	private View decode(ByteString ref) {
+		if (ref.isEmpty()) return View.BLANK;
+		return View.of(trie.decodeToNode(ref.asReadOnlyByteBuffer(), false));
+	}
+
+	private void emitIfChanged(ByteString oldValue, ByteString newValue) {
+		if (oldValue.equals(newValue)) return;
+		visitor.visit(currentKey(),
+				oldValue.isEmpty() ? null : oldValue.asReadOnlyByteBuffer(),
+				newValue.isEmpty() ? null : newValue.asReadOnlyByteBuffer());
+	}
+
+	/**
+	 * Reports every key value pair under given view as removed or added
+	 */
+	private void emitAll(View view, boolean removed) {
+		byte[] prefix = Arrays.copyOf(path, pathLength - view.consumed);
+		new TrieIterator<>(trie, view.node, prefix).visitRemainingSerialized((key, value) -> {
+			if (removed) visitor.visit(key, value, null);
+			else visitor.visit(key, null, value);
+		});
+	}
+
+	private ByteBuffer currentKey() {
+		byte[] key = new byte[pathLength >> 1];
+		for (int r = 0, w = 0; w < key.length; w++, r += 2) {
+			key[w] = (byte) ((path[r] << 4) | path[r + 1]);
+		}
+		return ByteBuffer.wrap(key);
+	}
+
+	private void append(int nibble) {
+		if (pathLength == path.length) path = Arrays.copyOf(path, pathLength << 1);
+		path[pathLength++] = (byte) nibble;
+	}
+
+	private void append(NibbleString nibbles) {
+		for (int i = 0; i < nibbles.size(); i++) append(nibbles.nibbleAsByte(i));
+	}
+}
@@ -0,0 +1,300 @@
+package org.serdaroquai.pml;
+
+import static org.serdaroquai.pml.NibbleString.isTerminal;
+import static org.serdaroquai.pml.NibbleString.unpack;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.function.BiConsumer;
+
+import org.serdaroquai.pml.NodeProto.TrieNode;
+
+/**
+ * Lazily iterates over key value pairs of a root in ascending (unsigned, lexicographic) order
+ * of serialized keys, decoding nodes only as they are reached.
+ *
+ * Only the nodes on the path to the current key are kept in memory. Iteration can be moved
+ * forward or backward with {@link #seek(Object)}, for example to resume paging from the last
+ * key seen.
+ *
+ * Since tries are immutable per root, an iterator is not affected by later updates.
+ *
+ * @author tr1b6162
+ *
+ * @param <K>
+ * @param <V>
+ */
+public class TrieIterator<K,V> implements Iterator<Map.Entry<K,V>> {
+
+	/**
+	 * A node on the path to the current key
+	 */
+	private static final class Frame {
+		final TrieNode node;
+		final NodeType type;
+		final int pathLength; // nibbles of path before this node
+		int next;             // branch: -1 for own value, then child index. others: 0 before, 1 after
+
+		Frame(TrieNode node, int pathLength) {
+			this.node = node;
+			this.type = Common.getNodeType(node);
+			this.pathLength = pathLength;
+			this.next = type == NodeType.BRANCH ? -1 : 0;
+		}
+	}
+
+	private final Trie<K,V> trie;
+	private final TrieNode root;
+	private final NibbleString toKey; // exclusive, null if unbounded
+	private final Deque<Frame> stack = new ArrayDeque<>();
+
+	private byte[] path = new byte[64]; // one nibble per byte
+	private int pathLength;
+
+	private ByteBuffer nextKey;
+	private ByteBuffer nextValue;
+
+	/**
+	 * @param trie
+	 * @param root decoded root node
+	 * @param fromKey serialized inclusive lower bound, null if unbounded
+	 * @param toKey serialized exclusive upper bound, null if unbounded
+	 */
+	TrieIterator(Trie<K,V> trie, TrieNode root, ByteBuffer fromKey, ByteBuffer toKey) {
+		this.trie = trie;
+		this.root = root;
+		this.toKey = toKey == null ? null : NibbleString.from(toKey);
+		seek(fromKey == null ? Common.EMPTY : fromKey);
+	}
+
+	/**
+	 * Iterates over a sub tree only, which can not be seeked
+	 *
+	 * @param trie
+	 * @param node decoded root of sub tree
+	 * @param prefix nibbles of the path to sub tree
+	 */
+	TrieIterator(Trie<K,V> trie, TrieNode node, byte[] prefix) {
+		this.trie = trie;
+		this.root = null;
+		this.toKey = null;
+		this.path = Arrays.copyOf(prefix, Math.max(64, prefix.length << 1));
+		this.pathLength = prefix.length;
+		stack.push(new Frame(node, pathLength));
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (nextKey == null) advance();
+		return nextKey != null;
+	}
+
+	@Override
+	public Map.Entry<K,V> next() {
+		if (!hasNext()) throw new NoSuchElementException();
+
+		Map.Entry<K,V> entry = new AbstractMap.SimpleImmutableEntry<>(
+				trie.getKeySerializer().deserialize(nextKey),
+				trie.getValueSerializer().deserialize(nextValue));
+		nextKey = null;
+		nextValue = null;
+		return entry;
+	}
+
+	/**
+	 * Pushes every remaining key value pair to given action, without creating entries
+	 *
+	 * @param action
+	 */
+	void visitRemaining(BiConsumer<? super K, ? super V> action) {
+		Serializer<K> keySerializer = trie.getKeySerializer();
+		Serializer<V> valueSerializer = trie.getValueSerializer();
+		visitRemainingSerialized((key, value) -> 
+			action.accept(keySerializer.deserialize(key), valueSerializer.deserialize(value)));
+	}
+
+	/**
+	 * Pushes every remaining serialized key value pair to given action
+	 *
+	 * @param action
+	 */
+	void visitRemainingSerialized(BiConsumer<ByteBuffer, ByteBuffer> action) {
+		while (hasNext()) {
+			action.accept(nextKey, nextValue);
+			nextKey = null;
+			nextValue = null;
+		}
+	}
+
+	/**
+	 * Moves this iterator so that it continues from the first key greater than or equal to given key.
+	 *
+	 * @param key
+	 * @return this iterator
+	 */
+	public TrieIterator<K,V> seek(K key) {
+		if (root == null) throw new UnsupportedOperationException("Can not seek within a sub tree");
+		seek(trie.getKeySerializer().serialize(key));
+		return this;
+	}
+
+	private void seek(ByteBuffer serializedKey) {
+		NibbleString target = NibbleString.from(serializedKey);
+		stack.clear();
+		pathLength = 0;
+		nextKey = null;
+		nextValue = null;
+
+		TrieNode node = root;
+		while (true) {
+			Frame frame = new Frame(node, pathLength);
+			if (frame.type == NodeType.BLANK) return;
+			stack.push(frame);
+
+			if (frame.type == NodeType.BRANCH) {
+				if (pathLength == target.size()) return; // every key here is >= target
+
+				// own value is shorter than target and smaller children come before it, skip them
+				int index = target.nibbleAsByte(pathLength);
+				frame.next = index + 1;
+				if (frame.node.getItem(index).isEmpty()) return;
+
+				append(index);
+				node = trie.decodeToNode(frame.node.getItem(index).asReadOnlyByteBuffer(), false);
+				continue;
+			}
+
+			ByteBuffer packed = frame.node.getItem(0).asReadOnlyByteBuffer();
+			NibbleString key = unpack(packed);
+			int c = compare(key, target, pathLength);
+
+			if (isTerminal(packed)) {
+				// a key that is a proper prefix of target is less than it
+				if (c < 0 || (c == 0 && key.size() < target.size() - pathLength)) frame.next = 1;
+				return;
+			}
+
+			// extension: descend only if target continues within it
+			if (c < 0) frame.next = 1;
+			if (c != 0 || target.size() - pathLength < key.size()) return;
+
+			frame.next = 1;
+			append(key);
+			node = trie.decodeToNode(frame.node.getItem(1).asReadOnlyByteBuffer(), false);
+		}
+	}
+
+	/**
+	 * Finds the next key value pair in order, if it is below upper bound
+	 */
+	private void advance() {
+		while (!stack.isEmpty()) {
+			Frame frame = stack.peek();
+			pathLength = frame.pathLength;
+
+			switch (frame.type) {
+			case LEAF:
+				if (frame.next++ > 0) {
+					stack.pop();
+					continue;
+				}
+				append(unpack(frame.node.getItem(0).asReadOnlyByteBuffer()));
+				if (emit(frame.node.getItem(1).asReadOnlyByteBuffer())) return;
+				continue;
+
+			case EXTENSION:
+				if (frame.next++ > 0) {
+					stack.pop();
+					continue;
+				}
+				append(unpack(frame.node.getItem(0).asReadOnlyByteBuffer()));
+				stack.push(new Frame(trie.decodeToNode(frame.node.getItem(1).asReadOnlyByteBuffer(), false), pathLength));
+				continue;
+
+			case BRANCH:
+				if (frame.next == -1) {
+					frame.next = 0;
+					if (!frame.node.getItem(16).isEmpty() && emit(frame.node.getItem(16).asReadOnlyByteBuffer())) return;
+					continue;
+				}
+				while (frame.next < 16 && frame.node.getItem(frame.next).isEmpty()) frame.next++;
+				if (frame.next == 16) {
+					stack.pop();
+					continue;
+				}
+				int index = frame.next++;
+				append(index);
+				stack.push(new Frame(trie.decodeToNode(frame.node.getItem(index).asReadOnlyByteBuffer(), false), pathLength));
+				continue;
+
+			default:
+				stack.pop();
+			}
+		}
+	}
+
+	/**
+	 * Sets current path as next key, unless it is beyond the upper bound, which ends iteration.
+	 *
+	 * @param value
+	 * @return true if there is a next key
+	 */
+	private boolean emit(ByteBuffer value) {
+		if (toKey != null && compare(toKey, 0) <= 0) {
+			stack.clear();
+			return false;
+		}
+
+		byte[] key = new byte[pathLength >> 1];
+		for (int r = 0, w = 0; w < key.length; w++, r += 2) {
+			key[w] = (byte) ((path[r] << 4) | path[r + 1]);
+		}
+		nextKey = ByteBuffer.wrap(key);
+		nextValue = value;
+		return true;
+	}
+
+	private void append(int nibble) {
+		if (pathLength == path.length) path = Arrays.copyOf(path, pathLength << 1);
+		path[pathLength++] = (byte) nibble;
+	}
+
+	private void append(NibbleString nibbles) {
+		for (int i = 0; i < nibbles.size(); i++) append(nibbles.nibbleAsByte(i));
+	}
+
+	/**
+	 * Compares current path (from given position on) to given nibbles (from the same position on).
+	 *
+	 * @return negative, zero or positive as given nibbles are less than, equal to or greater than the path
+	 */
+	private int compare(NibbleString nibbles, int from) {
+		int length = Math.min(pathLength, nibbles.size());
+		for (int i = from; i < length; i++) {
+			int c = nibbles.nibbleAsByte(i) - path[i];
+			if (c != 0) return c;
+		}
+		return nibbles.size() - pathLength;
+	}
+
+	/**
+	 * Compares key of a node at given depth, to the rest of target from the same depth on
+	 *
+	 * @return negative if every key under the node is less than target, positive if greater,
+	 * zero if key is a prefix of the rest of target or the other way round
+	 */
+	private static int compare(NibbleString key, NibbleString target, int depth) {
+		int length = Math.min(key.size(), target.size() - depth);
+		for (int i = 0; i < length; i++) {
+			int c = key.nibbleAsByte(i) - target.nibbleAsByte(depth + i);
+			if (c != 0) return c;
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,173 @@
+package org.serdaroquai.pml;
+
+import static org.serdaroquai.pml.Common.EMPTY;
+import static org.serdaroquai.pml.Common.EMPTY_NODE_BYTES;
+import static org.serdaroquai.pml.NibbleString.ODD_START;
+import static org.serdaroquai.pml.NibbleString.TERMINAL;
+
+import java.nio.ByteBuffer;
+import java.util.function.Function;
+
+/**
+ * Point lookups that walk encoded nodes in place, instead of parsing them into TrieNodes.
+ *
+ * Items of a node are located by scanning its protobuf wire format (a tag, a varint length and
+ * bytes per item) into per thread scratch offsets, inlined children are walked within the bytes
+ * of their parent, and key nibbles are compared against packed node keys directly. Apart from
+ * whatever the store does on a read, a lookup allocates nothing but a view of the value it finds.
+ *
+ * Results are the same as {@link Trie#get(Object)} has always returned, including
+ * {@link Common#EMPTY_NODE_BYTES} for a missing key. Nodes can come from a store, or from any
+ * other function of their hash, such as the nodes of a proof.
+ *
+ * Only reads the PROTOBUF node codec.
+ *
+ * @author tr1b6162
+ *
+ */
+final class TrieLookup {
+
+	private static final int ITEM_TAG = (1 << 3) | 2; // field 1, length delimited
+	private static final ThreadLocal<TrieLookup> SCRATCH = ThreadLocal.withInitial(TrieLookup::new);
+
+	private final int[] itemStart = new int[17];
+	private final int[] itemEnd = new int[17];
+	private final ByteBuffer hash = ByteBuffer.allocate(32);
+	private final ByteBuffer hashView = hash.asReadOnlyBuffer(); // what resolvers get to see
+
+	private Store store; // of a lookup in progress, bound once rather than captured per lookup
+	private final Function<ByteBuffer, ByteBuffer> fromStore = hash -> store.get(hash);
+
+	private TrieLookup() {}
+
+	/**
+	 * @param store
+	 * @param rootHash
+	 * @param key serialized key, from index 0 up to its limit
+	 * @return stored value, or {@link Common#EMPTY_NODE_BYTES} if there is none
+	 */
+	static ByteBuffer get(Store store, ByteBuffer rootHash, ByteBuffer key) {
+		TrieLookup lookup = SCRATCH.get();
+		lookup.store = store;
+		try {
+			return find(rootHash, key, lookup.fromStore);
+		} catch (IllegalArgumentException e) {
+			throw new AssertionError(e.getMessage());
+		} finally {
+			lookup.store = null;
+		}
+	}
+
+	/**
+	 * @param rootHash
+	 * @param key serialized key, from index 0 up to its limit
+	 * @param resolve encoded node of a 32 byte hash, null if there is none. Given hash is a read
+	 * only view of a scratch buffer, that has to be copied to be kept.
+	 * @return stored value, or {@link Common#EMPTY_NODE_BYTES} if there is none
+	 * @throws IllegalArgumentException if a node on the path is missing or malformed
+	 */
+	static ByteBuffer find(ByteBuffer rootHash, ByteBuffer key, Function<ByteBuffer, ByteBuffer> resolve) {
+		if (EMPTY_NODE_BYTES.equals(rootHash)) return EMPTY_NODE_BYTES;
+		return SCRATCH.get().find(resolve, fetch(resolve, rootHash), key);
+	}
+
+	private ByteBuffer find(Function<ByteBuffer, ByteBuffer> resolve, ByteBuffer node, ByteBuffer key) {
+		int start = node.position(), end = node.limit();
+		int nibble = 0, nibbles = key.limit() << 1;
+
+		while (true) {
+			switch (scan(node, start, end)) {
+			case 0: // blank
+				return EMPTY_NODE_BYTES;
+
+			case 1: // hash of a stored node
+				if (itemEnd[0] - itemStart[0] != 32) throw new IllegalArgumentException("Malformed node");
+				for (int i = 0; i < 32; i++) hash.put(i, node.get(itemStart[0] + i));
+				node = fetch(resolve, hashView);
+				start = node.position();
+				end = node.limit();
+				continue;
+
+			case 2: // leaf or extension
+				int keyStart = itemStart[0];
+				if (keyStart == itemEnd[0]) throw new IllegalArgumentException("Malformed node");
+				byte flags = node.get(keyStart);
+				int first = (flags & ODD_START) == ODD_START ? 1 : 2;
+				int keyNibbles = ((itemEnd[0] - keyStart) << 1) - first;
+				boolean terminal = (flags & TERMINAL) == TERMINAL;
+
+				if (terminal ? keyNibbles != nibbles - nibble : keyNibbles > nibbles - nibble)
+					return EMPTY_NODE_BYTES;
+				for (int i = 0; i < keyNibbles; i++) {
+					if (nibbleAt(node, keyStart, first + i) != nibbleAt(key, 0, nibble + i))
+						return EMPTY_NODE_BYTES;
+				}
+				nibble += keyNibbles;
+
+				if (terminal) return value(node, itemStart[1], itemEnd[1]);
+				start = itemStart[1];
+				end = itemEnd[1];
+				continue;
+
+			case 17: // branch
+				if (nibble == nibbles) return value(node, itemStart[16], itemEnd[16]);
+
+				int index = nibbleAt(key, 0, nibble++);
+				if (itemStart[index] == itemEnd[index]) return EMPTY_NODE_BYTES;
+				start = itemStart[index];
+				end = itemEnd[index];
+				continue;
+
+			default:
+				throw new IllegalArgumentException("Malformed node");
+			}
+		}
+	}
+
+	/**
+	 * Records where each item of the node encoded in given range starts and ends
+	 *
+	 * @return number of items
+	 */
+	private int scan(ByteBuffer node, int start, int end) {
+		int count = 0, p = start;
+		while (p < end) {
+			if (node.get(p++) != ITEM_TAG || count == 17) throw new IllegalArgumentException("Malformed node");
+
+			int length = 0, shift = 0;
+			byte b;
+			do {
+				if (p == end || shift > 28) throw new IllegalArgumentException("Malformed node");
+				b = node.get(p++);
+				length |= (b & 0x7f) << shift;
+				shift += 7;
+			} while (b < 0);
+			if (length < 0 || length > end - p) throw new IllegalArgumentException("Malformed node");
+
+			itemStart[count] = p;
+			itemEnd[count++] = p += length;
+		}
+		return count;
+	}
+
+	private static ByteBuffer fetch(Function<ByteBuffer, ByteBuffer> resolve, ByteBuffer hash) {
+		ByteBuffer node = resolve.apply(hash);
+		if (node == null) throw new IllegalArgumentException("Missing node " + Common.hashToShortString(hash));
+		return node;
+	}
+
+	private static int nibbleAt(ByteBuffer bytes, int base, int index) {
+		int b = bytes.get(base + (index >> 1));
+		return (index & 1) == 0 ? (b >> 4) & 0x0f : b & 0x0f;
+	}
+
+	/**
+	 * @return a read only view of given range, positioned at 0 as deserializers expect
+	 */
+	private static ByteBuffer value(ByteBuffer node, int start, int end) {
+		if (start == end) return EMPTY;
+		ByteBuffer value = node.asReadOnlyBuffer();
+		value.limit(end).position(start);
+		return value.slice();
+	}
+}
@@ -0,0 +1,147 @@
+package org.serdaroquai.pml;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+import org.serdaroquai.pml.NodeProto.TrieNode;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * A Spliterator over key value pairs of a root in ascending order of serialized keys, that
+ * splits along branch nodes so sub trees can be traversed in parallel.
+ *
+ * It holds a frontier of sub trees that are not visited yet, in key order. A split hands over
+ * the first half of the frontier, after expanding a lone sub tree into the children of its
+ * topmost branch node if needed. Once traversal of a sub tree has started it is not split.
+ *
+ * Size is not known up front, the estimate is halved on every split.
+ *
+ * @author tr1b6162
+ *
+ * @param <K>
+ * @param <V>
+ */
+public class TrieSpliterator<K,V> implements Spliterator<Map.Entry<K,V>> {
+
+	private static final class Subtree {
+		final TrieNode node;
+		final byte[] prefix; // nibbles of path to node
+
+		Subtree(TrieNode node, byte[] prefix) {
+			this.node = node;
+			this.prefix = prefix;
+		}
+	}
+
+	private static final ByteString EMPTY_TERMINAL_KEY =
+			ByteString.copyFrom(NibbleString.pack(Common.EMPTY_NIBBLE, true));
+
+	private final Trie<K,V> trie;
+	private final Deque<Subtree> frontier;
+	private TrieIterator<K,V> current;
+	private long estimate;
+
+	TrieSpliterator(Trie<K,V> trie, TrieNode root) {
+		this(trie, new ArrayDeque<>(), Long.MAX_VALUE);
+		if (Common.getNodeType(root) != NodeType.BLANK) frontier.add(new Subtree(root, new byte[0]));
+	}
+
+	private TrieSpliterator(Trie<K,V> trie, Deque<Subtree> frontier, long estimate) {
+		this.trie = trie;
+		this.frontier = frontier;
+		this.estimate = estimate;
+	}
+
+	@Override
+	public boolean tryAdvance(Consumer<? super Map.Entry<K,V>> action) {
+		while (current == null || !current.hasNext()) {
+			if (frontier.isEmpty()) return false;
+			current = iterator(frontier.poll());
+		}
+		action.accept(current.next());
+		return true;
+	}
+
+	@Override
+	public void forEachRemaining(Consumer<? super Map.Entry<K,V>> action) {
+		if (current != null) current.forEachRemaining(action);
+		while (!frontier.isEmpty()) {
+			current = iterator(frontier.poll());
+			current.forEachRemaining(action);
+		}
+	}
+
+	@Override
+	public Spliterator<Map.Entry<K,V>> trySplit() {
+		if (current != null) return null;
+
+		while (frontier.size() == 1 && expand(frontier.poll()));
+		if (frontier.size() < 2) return null;
+
+		Deque<Subtree> prefix = new ArrayDeque<>();
+		for (int i = frontier.size() >> 1; i > 0; i--) prefix.add(frontier.poll());
+
+		estimate >>>= 1;
+		return new TrieSpliterator<>(trie, prefix, estimate);
+	}
+
+	@Override
+	public long estimateSize() {
+		return frontier.isEmpty() && (current == null || !current.hasNext()) ? 0 : estimate;
+	}
+
+	@Override
+	public int characteristics() {
+		return ORDERED | DISTINCT | NONNULL | IMMUTABLE;
+	}
+
+	/**
+	 * Replaces given sub tree on the frontier with its children, in key order
+	 *
+	 * @param subtree
+	 * @return false if it can not be expanded (it is a leaf)
+	 */
+	private boolean expand(Subtree subtree) {
+		TrieNode node = subtree.node;
+		switch (Common.getNodeType(node)) {
+		case EXTENSION:
+			NibbleString key = NibbleString.unpack(node.getItem(0).asReadOnlyByteBuffer());
+			byte[] prefix = Arrays.copyOf(subtree.prefix, subtree.prefix.length + key.size());
+			for (int i = 0; i < key.size(); i++) prefix[subtree.prefix.length + i] = key.nibbleAsByte(i);
+			frontier.addFirst(new Subtree(decode(node.getItem(1)), prefix));
+			return true;
+
+		case BRANCH:
+			// children are pushed to the front in reverse, so they end up in key order
+			for (int i = 15; i >= 0; i--) {
+				if (node.getItem(i).isEmpty()) continue;
+				byte[] childPrefix = Arrays.copyOf(subtree.prefix, subtree.prefix.length + 1);
+				childPrefix[subtree.prefix.length] = (byte) i;
+				frontier.addFirst(new Subtree(decode(node.getItem(i)), childPrefix));
+			}
+			if (!node.getItem(16).isEmpty()) {
+				// own value comes before all children, as a leaf with an empty key
+				TrieNode value = TrieNode.newBuilder().addItem(EMPTY_TERMINAL_KEY).addItem(node.getItem(16)).build();
+				frontier.addFirst(new Subtree(value, subtree.prefix));
+			}
+			return true;
+
+		default:
+			frontier.addFirst(subtree);
+			return false;
+		}
+	}
+
+	private TrieNode decode(ByteString ref) {
+		return trie.decodeToNode(ref.asReadOnlyByteBuffer(), false);
+	}
+
+	private TrieIterator<K,V> iterator(Subtree subtree) {
+		return new TrieIterator<>(trie, subtree.node, subtree.prefix);
+	}
+}
@@ -0,0 +1,97 @@
+package org.serdaroquai.pml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.serdaroquai.pml.TestTries.bytes;
+import static org.serdaroquai.pml.TestTries.trieOf;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class BatchProofTest {
+
+	private Map<String, String> values;
+	private Trie<String, String> trie;
+
+	@Before
+	public void setup() {
+		values = new HashMap<>();
+		for (int i = 0; i < 2000; i++) values.put("key" + i, "value " + i);
+		trie = trieOf(values);
+	}
+
+	@Test
+	public void testVerifiesAllKeys() {
+		List<String> keys = new ArrayList<>();
+		for (int i = 0; i < 3000; i += 7) keys.add("key" + i);
+		keys.add("missing");
+
+		BatchProof proof = trie.proveAll(keys);
+		Map<ByteBuffer, ByteBuffer> proven = proof.verify(trie.getRootHash());
+
+		assertEquals(keys.size(), proven.size());
+		for (String key : keys) {
+			String expected = values.get(key);
+			assertTrue(proven.containsKey(bytes(key)));
+			if (expected == null) assertNull(key, proven.get(bytes(key)));
+			else assertEquals(key, bytes(expected), proven.get(bytes(key)));
+		}
+	}
+
+	@Test
+	public void testSharedNodesAreSentOnce() {
+		List<String> keys = new ArrayList<>();
+		for (int i = 0; i < 100; i++) keys.add("key" + (i * 13));
+
+		BatchProof batch = trie.proveAll(keys);
+		int separateBytes = 0;
+		Set<ByteBuffer> distinct = new HashSet<>();
+		for (String key : keys) {
+			Proof proof = trie.prove(key);
+			separateBytes += proof.byteSize();
+			distinct.addAll(proof.getNodes());
+		}
+
+		assertEquals(distinct, new HashSet<>(batch.getNodes()));
+		assertEquals(distinct.size(), batch.getNodes().size());
+		assertTrue(batch.byteSize() < separateBytes / 2);
+	}
+
+	@Test
+	public void testMissingNodeIsRejected() {
+		List<String> keys = new ArrayList<>();
+		for (int i = 0; i < 50; i++) keys.add("key" + i);
+		BatchProof proof = trie.proveAll(keys);
+
+		List<ByteBuffer> nodes = new ArrayList<>(proof.getNodes());
+		nodes.remove(nodes.size() - 1);
+		try {
+			BatchProof.verify(trie.getRootHash(), proof.getKeys(), nodes);
+			fail("Proof should not hold");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testWireFormat() {
+		List<String> keys = new ArrayList<>();
+		for (int i = 0; i < 50; i++) keys.add("key" + i);
+		BatchProof proof = trie.proveAll(keys);
+
+		BatchProof decoded = BatchProof.from(proof.toByteBuffer());
+		assertEquals(proof.getKeys(), decoded.getKeys());
+		assertEquals(proof.getNodes(), decoded.getNodes());
+		assertEquals(proof.verify(trie.getRootHash()), decoded.verify(trie.getRootHash()));
+	}
+}
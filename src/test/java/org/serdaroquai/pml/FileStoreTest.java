@@ -0,0 +1,243 @@
+package org.serdaroquai.pml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.serdaroquai.pml.TestTries.bytes;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FileStoreTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testPutGet() throws IOException {
+		try (FileStore store = new FileStore(folder.getRoot().toPath())) {
+			ByteBuffer value = bytes("some node");
+			ByteBuffer hash = Common.sha256(value);
+			store.put(hash, value);
+
+			assertEquals(value, store.get(hash));
+			assertTrue(store.get(hash).isReadOnly());
+			assertNull(store.get(Common.sha256(bytes("missing"))));
+		}
+	}
+
+	@Test
+	public void testCommittedNodesSurviveReopen() throws IOException {
+		Path directory = folder.getRoot().toPath();
+		ByteBuffer committed = bytes("committed");
+		ByteBuffer uncommitted = bytes("uncommitted");
+
+		try (FileStore store = new FileStore(directory)) {
+			store.put(Common.sha256(committed), committed);
+			assertTrue(store.commit());
+			store.put(Common.sha256(uncommitted), uncommitted);
+		}
+
+		try (FileStore store = new FileStore(directory)) {
+			assertEquals(committed, store.get(Common.sha256(committed)));
+			assertNull(store.get(Common.sha256(uncommitted)));
+		}
+	}
+
+	@Test
+	public void testRollbackDropsStagedNodes() throws IOException {
+		Path directory = folder.getRoot().toPath();
+		try (FileStore store = new FileStore(directory, 128)) {
+			ByteBuffer committed = bytes("committed");
+			store.put(Common.sha256(committed), committed);
+			store.commit();
+
+			// only staged, nothing is appended before commit
+			for (int i = 0; i < 10; i++) {
+				ByteBuffer value = bytes("rolled back " + i);
+				store.put(Common.sha256(value), value);
+			}
+			store.rollback();
+
+			assertEquals(committed, store.get(Common.sha256(committed)));
+			for (int i = 0; i < 10; i++) {
+				assertNull(store.get(Common.sha256(bytes("rolled back " + i))));
+			}
+			assertEquals(1, Files.list(directory).count());
+
+			ByteBuffer value = bytes("after rollback");
+			store.put(Common.sha256(value), value);
+			store.commit();
+			assertEquals(value, store.get(Common.sha256(value)));
+		}
+	}
+
+	private static long header(Path directory) throws IOException {
+		return ByteBuffer.wrap(Files.readAllBytes(directory.resolve("segment-00000000.log"))).getLong(0);
+	}
+
+	@Test
+	public void testFailedWriteTruncatesTail() throws IOException {
+		Path directory = folder.getRoot().toPath();
+		ByteBuffer committed = bytes("committed");
+		boolean[] fail = new boolean[1];
+
+		try (FileStore store = new FileStore(directory, 128) {
+			@Override
+			void writeHeader(long address) {
+				super.writeHeader(address);
+				if (fail[0]) throw new UncheckedIOException(new IOException("Disk is gone"));
+			}
+		}) {
+			store.put(Common.sha256(committed), committed);
+			assertTrue(store.commit());
+			long header = header(directory);
+
+			// appended across a few segments, then flushing the header fails
+			fail[0] = true;
+			for (int i = 0; i < 10; i++) {
+				ByteBuffer value = bytes("failed " + i);
+				store.put(Common.sha256(value), value);
+			}
+			assertFalse(store.commit());
+			assertEquals(header, header(directory));
+			store.rollback();
+
+			assertEquals(1, store.hashes().size());
+			assertEquals(committed, store.get(Common.sha256(committed)));
+			for (int i = 0; i < 10; i++) {
+				assertNull(store.get(Common.sha256(bytes("failed " + i))));
+			}
+			assertEquals(1, Files.list(directory).count());
+
+			// appends resume from the committed position
+			fail[0] = false;
+			ByteBuffer value = bytes("after failure");
+			store.put(Common.sha256(value), value);
+			assertTrue(store.commit());
+		}
+
+		try (FileStore store = new FileStore(directory, 128)) {
+			assertEquals(2, store.hashes().size());
+			assertEquals(committed, store.get(Common.sha256(committed)));
+			assertEquals(bytes("after failure"), store.get(Common.sha256(bytes("after failure"))));
+			for (int i = 0; i < 10; i++) {
+				assertNull(store.get(Common.sha256(bytes("failed " + i))));
+			}
+		}
+	}
+
+	@Test
+	public void testRemoveSurvivesReopen() throws IOException {
+		Path directory = folder.getRoot().toPath();
+		ByteBuffer kept = bytes("kept");
+		ByteBuffer removed = bytes("removed");
+
+		try (FileStore store = new FileStore(directory, 128)) {
+			store.put(Common.sha256(kept), kept);
+			store.put(Common.sha256(removed), removed);
+			assertTrue(store.commit());
+
+			store.remove(Common.sha256(removed));
+			assertNull(store.get(Common.sha256(removed)));
+			assertEquals(2, store.hashes().size()); // committed only
+			assertTrue(store.commit());
+			assertEquals(1, store.hashes().size());
+		}
+
+		try (FileStore store = new FileStore(directory, 128)) {
+			assertEquals(kept, store.get(Common.sha256(kept)));
+			assertNull(store.get(Common.sha256(removed)));
+
+			// can be stored again after removal
+			store.put(Common.sha256(removed), removed);
+			assertTrue(store.commit());
+		}
+
+		try (FileStore store = new FileStore(directory, 128)) {
+			assertEquals(removed, store.get(Common.sha256(removed)));
+			assertEquals(2, store.hashes().size());
+		}
+	}
+
+	@Test
+	public void testRemoveIsUndoneByRollback() throws IOException {
+		Path directory = folder.getRoot().toPath();
+		ByteBuffer kept = bytes("kept");
+		ByteBuffer removed = bytes("removed");
+		boolean[] fail = new boolean[1];
+
+		try (FileStore store = new FileStore(directory, 128) {
+			@Override
+			void writeHeader(long address) {
+				super.writeHeader(address);
+				if (fail[0]) throw new UncheckedIOException(new IOException("Disk is gone"));
+			}
+		}) {
+			store.put(Common.sha256(kept), kept);
+			store.put(Common.sha256(removed), removed);
+			assertTrue(store.commit());
+
+			store.remove(Common.sha256(removed));
+			store.rollback();
+			assertEquals(removed, store.get(Common.sha256(removed)));
+			assertEquals(2, store.hashes().size());
+
+			// removed and stored again in the same transaction
+			store.remove(Common.sha256(removed));
+			store.put(Common.sha256(removed), removed);
+			store.remove(Common.sha256(removed));
+			fail[0] = true;
+			assertFalse(store.commit());
+			assertEquals(2, store.hashes().size());
+			store.rollback();
+			assertEquals(removed, store.get(Common.sha256(removed)));
+		}
+
+		try (FileStore store = new FileStore(directory, 128)) {
+			assertEquals(kept, store.get(Common.sha256(kept)));
+			assertEquals(removed, store.get(Common.sha256(removed)));
+		}
+	}
+
+	@Test
+	public void testTrieSurvivesReopen() throws IOException {
+		Path directory = folder.getRoot().toPath();
+		Map<Long, Long> values = new HashMap<>();
+		Random r = new Random();
+		for (int i = 0; i < 1000; i++) values.put(r.nextLong(), r.nextLong());
+
+		ByteBuffer rootHash;
+		try (FileStore store = new FileStore(directory, 4096)) {
+			Trie<Long, Long> trie = new Trie.TrieBuilder<Long, Long>()
+					.keySerializer(Serializer.INT64)
+					.valueSerializer(Serializer.INT64)
+					.store(store)
+					.from(values)
+					.build();
+			rootHash = trie.getRootHash();
+			trie.put(1L, 1L); // one more commit
+		}
+
+		try (FileStore store = new FileStore(directory, 4096)) {
+			Trie<Long, Long> trie = new Trie.TrieBuilder<Long, Long>()
+					.keySerializer(Serializer.INT64)
+					.valueSerializer(Serializer.INT64)
+					.store(store)
+					.rootHash(rootHash)
+					.build();
+			assertEquals(values, trie.toMap());
+		}
+	}
+}
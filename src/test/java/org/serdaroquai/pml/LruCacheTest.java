@@ -0,0 +1,51 @@
+package org.serdaroquai.pml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class LruCacheTest {
+
+	@Test
+	public void testEvictsLeastRecentlyUsed() {
+		LruCache<String, String> cache = new LruCache<>(2);
+		cache.put("a", "1");
+		cache.put("b", "2");
+		cache.get("a"); // b is now the least recently used
+		cache.put("c", "3");
+
+		assertEquals(2, cache.size());
+		assertEquals("1", cache.get("a"));
+		assertNull(cache.get("b"));
+		assertEquals("3", cache.get("c"));
+	}
+
+	@Test
+	public void testHitsAndMisses() {
+		LruCache<String, String> cache = new LruCache<>(10);
+		cache.get("a");
+		cache.put("a", "1");
+		cache.get("a");
+		cache.get("a");
+		cache.get("b");
+
+		assertEquals(2, cache.getHits());
+		assertEquals(2, cache.getMisses());
+	}
+
+	@Test
+	public void testRemove() {
+		LruCache<String, String> cache = new LruCache<>(10);
+		cache.put("a", "1");
+		cache.remove("a");
+
+		assertNull(cache.get("a"));
+		assertEquals(0, cache.size());
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testInvalidCapacity() {
+		new LruCache<String, String>(0);
+	}
+}
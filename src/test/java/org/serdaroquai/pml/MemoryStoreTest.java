@@ -0,0 +1,70 @@
+package org.serdaroquai.pml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.serdaroquai.pml.TestTries.bytes;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class MemoryStoreTest {
+
+	@Test
+	public void testPutsAreStagedUntilCommit() {
+		MemoryStore store = new MemoryStore();
+		ByteBuffer value = bytes("node");
+		ByteBuffer hash = Common.sha256(value);
+
+		store.put(hash, value);
+		assertEquals(value, store.get(hash)); // visible to the ongoing transaction
+		assertEquals(1, store.stagedCount());
+		assertEquals(0, store.size());
+
+		assertTrue(store.commit());
+		assertEquals(value, store.get(hash));
+		assertEquals(0, store.stagedCount());
+		assertEquals(1, store.size());
+	}
+
+	@Test
+	public void testRemove() {
+		MemoryStore store = new MemoryStore();
+		ByteBuffer committed = bytes("committed");
+		ByteBuffer staged = bytes("staged");
+
+		store.put(Common.sha256(committed), committed);
+		store.commit();
+		store.put(Common.sha256(staged), staged);
+		assertEquals(1, store.hashes().size()); // committed only
+
+		store.remove(Common.sha256(committed));
+		store.remove(Common.sha256(staged));
+		assertNull(store.get(Common.sha256(committed)));
+		assertNull(store.get(Common.sha256(staged)));
+		assertTrue(store.commit());
+		assertEquals(0, store.size());
+	}
+
+	@Test
+	public void testRollbackDiscardsStagedPuts() {
+		MemoryStore store = new MemoryStore();
+		ByteBuffer committed = bytes("committed");
+		ByteBuffer discarded = bytes("discarded");
+
+		store.put(Common.sha256(committed), committed);
+		store.commit();
+		store.put(Common.sha256(discarded), discarded);
+		store.remove(Common.sha256(committed));
+		assertNull(store.get(Common.sha256(committed)));
+		assertEquals(2, store.stagedCount());
+		store.rollback();
+
+		assertEquals(committed, store.get(Common.sha256(committed)));
+		assertNull(store.get(Common.sha256(discarded)));
+		assertEquals(1, store.size());
+		assertTrue(store.commit());
+		assertEquals(1, store.size());
+	}
+}
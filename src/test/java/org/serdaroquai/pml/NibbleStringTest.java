@@ -2,6 +2,7 @@ package org.serdaroquai.pml;
 
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertTrue;
 
@@ -9,6 +10,7 @@ import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 
 import org.junit.Test;
 
@@ -172,4 +174,46 @@ public class NibbleStringTest {
 		assertNotEquals(b1, b2);
 		assertNotEquals(b1Prime, b2);
 	}
+
+	@Test
+	public void testCommonPrefixLength() {
+		NibbleString n = NibbleString.from(ByteBuffer.wrap(new byte[]{0x12, 0x34, 0x56, 0x78}));
+		NibbleString m = NibbleString.from(ByteBuffer.wrap(new byte[]{0x12, 0x34, 0x57, 0x78}));
+
+		assertEquals(5, n.commonPrefixLength(m));
+		assertEquals(8, n.commonPrefixLength(n));
+		assertEquals(4, n.substring(1).commonPrefixLength(m.substring(1))); // both misaligned
+		assertEquals(3, n.substring(2, 5).commonPrefixLength(NibbleString.of((byte) 3, (byte) 4, (byte) 5, (byte) 6)));
+		assertEquals(0, n.substring(1).commonPrefixLength(m));
+		assertEquals(0, n.commonPrefixLength(Common.EMPTY_NIBBLE));
+
+		assertTrue(n.startsWith(n.substring(0, 3)));
+		assertTrue(n.substring(3).startsWith(m.substring(3, 5)));
+		assertFalse(n.substring(3).startsWith(m.substring(3, 6)));
+		assertFalse(n.substring(0, 2).startsWith(n));
+	}
+
+	@Test
+	public void testPackedViewsMatchNibbles() {
+		Random r = new Random(3);
+		for (int round = 0; round < 1000; round++) {
+			byte[] nibbles = new byte[r.nextInt(20)];
+			for (int i = 0; i < nibbles.length; i++) nibbles[i] = (byte) r.nextInt(16);
+			NibbleString n = NibbleString.of(nibbles);
+
+			int from = nibbles.length == 0 ? 0 : r.nextInt(nibbles.length + 1);
+			NibbleString sub = n.substring(from);
+			byte[] expected = Arrays.copyOfRange(nibbles, from, nibbles.length);
+			assertEquals(NibbleString.of(expected), sub);
+			assertEquals(NibbleString.of(expected).hashCode(), sub.hashCode());
+
+			boolean terminal = r.nextBoolean();
+			ByteBuffer packed = NibbleString.pack(sub, terminal);
+			assertEquals(sub, NibbleString.unpack(packed));
+			assertEquals(terminal, NibbleString.isTerminal(packed));
+			assertEquals(NibbleString.pack(NibbleString.of(expected), terminal), packed);
+
+			assertEquals(sub.concat(n).toString(), sub.toString() + n.toString());
+		}
+	}
 }
@@ -0,0 +1,100 @@
+package org.serdaroquai.pml;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.serdaroquai.pml.NodeProto.TrieNode;
+
+/**
+ * Run with: mvn verify -Pbenchmark -DskipTests -Djmh.args="NodeCodecBenchmark"
+ *
+ * Encodes and decodes stored nodes of a trie of random keys under each codec. Reports encoded
+ * bytes and nodes as secondary counters of encode, their ratio is the average node size.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NodeCodecBenchmark {
+
+	@Param({"PROTOBUF", "COMPACT"})
+	String codecName;
+
+	@Param({"BRANCH", "LEAF"})
+	NodeType type;
+
+	NodeCodec codec;
+	TrieNode[] nodes;
+	ByteBuffer[] encoded;
+	int next;
+
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	@State(Scope.Thread)
+	public static class NodeSize {
+		public long nodeBytes;
+		public long nodeCount;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			nodeBytes = 0;
+			nodeCount = 0;
+		}
+	}
+
+	@Setup
+	public void setup() {
+		codec = "COMPACT".equals(codecName) ? NodeCodec.COMPACT : NodeCodec.PROTOBUF;
+
+		Random r = new Random(42);
+		Map<Long, String> values = new HashMap<>();
+		// values long enough for leaves to be stored rather than inlined
+		while (values.size() < 10000) values.put(r.nextLong(), "value " + r.nextLong());
+		MemoryStore store = new MemoryStore();
+		new Trie.TrieBuilder<Long, String>()
+				.keySerializer(Serializer.INT64)
+				.valueSerializer(Serializer.STRING_UTF8)
+				.codec(codec)
+				.store(store)
+				.from(values)
+				.build();
+
+		nodes = store.hashes().stream()
+				.map(hash -> codec.decode(store.get(hash)))
+				.filter(node -> Common.getNodeType(node) == type)
+				.limit(1024)
+				.toArray(TrieNode[]::new);
+		encoded = new ByteBuffer[nodes.length];
+		for (int i = 0; i < nodes.length; i++) encoded[i] = ByteBuffer.wrap(codec.encode(nodes[i]));
+	}
+
+	@Benchmark
+	public byte[] encode(NodeSize counters) {
+		byte[] result = codec.encode(nodes[next++ % nodes.length]);
+		counters.nodeBytes += result.length;
+		counters.nodeCount++;
+		return result;
+	}
+
+	@Benchmark
+	public TrieNode decode() {
+		return codec.decode(encoded[next++ % encoded.length]);
+	}
+}
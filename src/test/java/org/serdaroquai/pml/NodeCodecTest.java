@@ -0,0 +1,255 @@
+package org.serdaroquai.pml;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+import org.serdaroquai.pml.NodeProto.TrieNode;
+
+import com.google.protobuf.ByteString;
+
+public class NodeCodecTest {
+
+	private static final NodeCodec[] CODECS = {NodeCodec.PROTOBUF, NodeCodec.COMPACT};
+
+	private static Trie.TrieBuilder<String, String> builder(NodeCodec codec) {
+		return TestTries.builder().codec(codec);
+	}
+
+	private static Map<String, String> values() {
+		Map<String, String> values = new HashMap<>();
+		Random r = new Random(3);
+		for (int i = 0; i < 2000; i++) {
+			// short values end up in inlined nodes, long ones in stored nodes
+			String value = r.nextBoolean() ? "v" + i : "a value that is long enough not to be inlined " + i;
+			values.put("key" + r.nextInt(10000), value);
+		}
+		values.put("do", "verb");
+		values.put("dog", "puppy");
+		values.put("doge", "coin");
+		return values;
+	}
+
+	private static ByteString bytes(int length, int seed) {
+		byte[] result = new byte[length];
+		new Random(seed).nextBytes(result);
+		return ByteString.copyFrom(result);
+	}
+
+	@Test
+	public void testRoundTrip() {
+		TrieNode hash = TrieNode.newBuilder().addItem(bytes(32, 1)).build();
+		TrieNode leaf = TrieNode.newBuilder()
+				.addItem(ByteString.copyFrom(NibbleString.pack(NibbleString.of((byte) 1, (byte) 2, (byte) 3), true)))
+				.addItem(bytes(200, 2))
+				.build();
+		TrieNode extension = TrieNode.newBuilder()
+				.addItem(ByteString.copyFrom(NibbleString.pack(NibbleString.of((byte) 4, (byte) 5), false)))
+				.addItem(ByteString.copyFrom(NodeCodec.COMPACT.encode(hash)))
+				.build();
+		TrieNode.Builder branch = TrieNode.newBuilder();
+		for (int i = 0; i < 16; i++) branch.addItem(i % 3 == 0 ? bytes(33, i) : ByteString.EMPTY);
+		TrieNode valueBranch = branch.addItem(bytes(5, 3)).build();
+
+		TrieNode.Builder builder = TrieNode.newBuilder();
+		for (int i = 0; i < 16; i++) builder.addItem(i == 15 ? bytes(200, i) : ByteString.EMPTY);
+		TrieNode emptyValueBranch = builder.addItem(ByteString.EMPTY).build();
+
+		for (NodeCodec codec : CODECS) {
+			for (TrieNode node : Arrays.asList(Common.EMPTY_NODE, hash, leaf, extension, valueBranch,
+					emptyValueBranch, Common.BRANCH_NODE_PROTOTYPE)) {
+				assertEquals(codec.toString(), node, codec.decode(ByteBuffer.wrap(codec.encode(node))));
+			}
+		}
+	}
+
+	@Test
+	public void testHashNode() {
+		ByteBuffer view = ByteBuffer.wrap(("padding" + "some encoded node").getBytes());
+		view.position(7);
+		ByteBuffer hash = Common.sha256(view);
+		assertEquals(7, view.position());
+		assertEquals(Common.sha256(ByteBuffer.wrap("some encoded node".getBytes())), hash);
+
+		TrieNode hashNode = TrieNode.newBuilder().addItem(ByteString.copyFrom(hash.duplicate())).build();
+		for (NodeCodec codec : CODECS) {
+			assertArrayEquals(codec.toString(), codec.encode(hashNode), codec.encodeHashNode(hash));
+		}
+	}
+
+	@Test
+	public void testCompactIsSmaller() {
+		TrieNode hash = TrieNode.newBuilder().addItem(bytes(32, 1)).build();
+		assertEquals(34, NodeCodec.PROTOBUF.encode(hash).length);
+		assertEquals(33, NodeCodec.COMPACT.encode(hash).length);
+
+		TrieNode.Builder branch = TrieNode.newBuilder();
+		for (int i = 0; i < 16; i++) branch.addItem(i < 2 ? bytes(33, i) : ByteString.EMPTY);
+		TrieNode node = branch.addItem(ByteString.EMPTY).build();
+		assertEquals(2 * 35 + 15 * 2, NodeCodec.PROTOBUF.encode(node).length);
+		assertEquals(3 + 2 * 34, NodeCodec.COMPACT.encode(node).length);
+	}
+
+	@Test
+	public void testMalformed() {
+		byte[][] malformed = {
+				{0x01, 1, 2, 3}, // short hash
+				{0x02, 5, 1}, // key longer than node
+				{0x02, 0}, // empty key
+				{0x03, 0x00}, // short bitmap
+				{0x03, 0x00, 0x01, 40, 1}, // child longer than node
+				{0x07, 1}, // unknown tag
+		};
+		for (byte[] bytes : malformed) {
+			try {
+				NodeCodec.COMPACT.decode(ByteBuffer.wrap(bytes));
+				fail(Arrays.toString(bytes) + " should be rejected");
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+
+		try {
+			NodeCodec.PROTOBUF.decode(ByteBuffer.wrap(new byte[] {0x0a, 5, 1}));
+			fail("Truncated protobuf should be rejected");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testSameContentsDifferentRoot() {
+		Map<String, String> values = values();
+		Trie<String, String> protobuf = builder(NodeCodec.PROTOBUF).from(values).build();
+		MemoryStore store = new MemoryStore();
+		Trie<String, String> compact = builder(NodeCodec.COMPACT).store(store).from(values).build();
+
+		assertNotEquals(protobuf.getRootHash(), compact.getRootHash());
+		assertEquals(values, compact.toMap());
+		for (String key : Arrays.asList("do", "dog", "doge", "key1", "d", "dogs", "zzz")) {
+			assertEquals(key, protobuf.get(key), compact.get(key));
+		}
+
+		// reopened by root hash
+		Trie<String, String> reopened = builder(NodeCodec.COMPACT).store(store).rootHash(compact.getRootHash()).build();
+		assertEquals(values, reopened.toMap());
+		Trie<String, String> cached = builder(NodeCodec.COMPACT).store(store).rootHash(compact.getRootHash())
+				.nodeCache(100).build();
+		assertEquals("puppy", cached.get("dog"));
+	}
+
+	@Test
+	public void testEmptyRootIsShared() {
+		for (NodeCodec codec : CODECS) {
+			Trie<String, String> trie = builder(codec).build();
+			assertEquals(Common.EMPTY_NODE_BYTES, trie.getRootHash());
+			trie.put("a", "b");
+			trie.remove("a");
+			assertEquals(Common.EMPTY_NODE_BYTES, trie.getRootHash());
+		}
+	}
+
+	@Test
+	public void testUpdatesAndDiff() {
+		Map<String, String> values = values();
+		for (NodeCodec codec : CODECS) {
+			Trie<String, String> trie = builder(codec).from(values).build();
+			ByteBuffer oldRoot = trie.getRootHash();
+			trie.put("dog", "hound");
+			trie.remove("doge");
+			trie.put("cat", "kitten");
+
+			Map<String, String> remove = new HashMap<>();
+			Map<String, String> update = new HashMap<>();
+			trie.difference(oldRoot, remove, update);
+			// old values of changed keys are listed as removed too
+			assertEquals(codec.toString(), 2, remove.size());
+			assertEquals("coin", remove.get("doge"));
+			assertEquals("puppy", remove.get("dog"));
+			assertEquals(codec.toString(), 2, update.size());
+			assertEquals("kitten", update.get("cat"));
+			assertEquals("hound", update.get("dog"));
+			assertEquals("coin", trie.get(oldRoot, "doge"));
+		}
+	}
+
+	@Test
+	public void testProofs() {
+		Map<String, String> values = values();
+		Trie<String, String> trie = builder(NodeCodec.COMPACT).from(values).build();
+		ByteBuffer rootHash = trie.getRootHash();
+
+		Proof proof = Proof.from(trie.prove("doge").toByteBuffer(), NodeCodec.COMPACT);
+		assertEquals(Serializer.STRING_UTF8.serialize("coin"), proof.verify(rootHash));
+		assertNull(trie.prove("dogs").verify(rootHash));
+
+		BatchProof batch = BatchProof.from(trie.proveAll(Arrays.asList("do", "dogs")).toByteBuffer(), NodeCodec.COMPACT);
+		Map<ByteBuffer, ByteBuffer> proven = batch.verify(rootHash);
+		assertEquals(Serializer.STRING_UTF8.serialize("verb"), proven.get(Serializer.STRING_UTF8.serialize("do")));
+		assertNull(proven.get(Serializer.STRING_UTF8.serialize("dogs")));
+
+		// nodes are not protobuf, so the default codec can not make sense of them
+		try {
+			Proof.verify(rootHash, Serializer.STRING_UTF8.serialize("doge"), proof.getNodes());
+			fail("Proof should be rejected under another codec");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testReleaseAndPrune() {
+		Map<String, String> values = values();
+		MemoryStore memoryStore = new MemoryStore();
+		Trie<String, String> trie = builder(NodeCodec.COMPACT).store(new RefCountingStore(memoryStore, NodeCodec.COMPACT)).build();
+		for (Map.Entry<String, String> e : values.entrySet()) {
+			ByteBuffer previous = trie.getRootHash();
+			trie.put(e.getKey(), e.getValue());
+			trie.release(previous);
+		}
+		MemoryStore fresh = new MemoryStore();
+		builder(NodeCodec.COMPACT).store(fresh).from(values).build();
+		assertEquals(fresh.size(), memoryStore.size());
+
+		ByteBuffer oldRoot = trie.getRootHash();
+		Trie<String, String> pruned = builder(NodeCodec.COMPACT).store(fresh).rootHash(oldRoot).build();
+		pruned.put("dog", "hound");
+		assertTrue(pruned.prune(Collections.singleton(pruned.getRootHash())) > 0);
+		assertEquals("hound", pruned.get("dog"));
+		assertEquals(values.size(), pruned.toMap().size());
+	}
+
+	@Test
+	public void testSyncAndSnapshot() throws IOException {
+		Map<String, String> values = values();
+		MemoryStore store = new MemoryStore();
+		Trie<String, String> trie = builder(NodeCodec.COMPACT).store(store).from(values).build();
+		ByteBuffer rootHash = trie.getRootHash();
+
+		MemoryStore synced = new MemoryStore();
+		new StateSync(synced, NodeSource.of(store), rootHash, StateSync.DEFAULT_BATCH_SIZE, NodeCodec.COMPACT).run();
+		assertEquals(store.size(), synced.size());
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Snapshot.write(synced, rootHash, out, NodeCodec.COMPACT);
+		MemoryStore loaded = new MemoryStore();
+		Snapshot.load(new ByteArrayInputStream(out.toByteArray()), loaded, ForkJoinPool.commonPool(), NodeCodec.COMPACT);
+		assertEquals(store.size(), loaded.size());
+		assertEquals(values, builder(NodeCodec.COMPACT).store(loaded).rootHash(rootHash).build().toMap());
+	}
+}
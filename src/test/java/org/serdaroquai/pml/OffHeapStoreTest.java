@@ -0,0 +1,104 @@
+package org.serdaroquai.pml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.serdaroquai.pml.TestTries.bytes;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class OffHeapStoreTest {
+
+	@Test
+	public void testPutGet() {
+		OffHeapStore store = new OffHeapStore();
+		ByteBuffer value = bytes("some node");
+		ByteBuffer hash = Common.sha256(value);
+		store.put(hash, value);
+		store.put(hash, value);
+		store.commit();
+		store.put(hash, value);
+		store.commit();
+
+		assertEquals(1, store.size());
+		assertEquals(value, store.get(hash));
+		assertTrue(store.get(hash).isReadOnly());
+		assertNull(store.get(Common.sha256(bytes("missing"))));
+	}
+
+	@Test
+	public void testGrowsIndexAndArena() {
+		OffHeapStore store = new OffHeapStore(16, 256);
+		Map<ByteBuffer, ByteBuffer> expected = new HashMap<>();
+		for (int i = 0; i < 10000; i++) {
+			ByteBuffer value = bytes("node " + i);
+			ByteBuffer hash = Common.sha256(value);
+			expected.put(hash, value);
+			store.put(hash, value);
+			if (i % 1000 == 0) store.commit();
+		}
+		store.commit();
+
+		assertEquals(expected.size(), store.size());
+		for (Map.Entry<ByteBuffer, ByteBuffer> e : expected.entrySet()) {
+			assertEquals(e.getValue(), store.get(e.getKey()));
+		}
+	}
+
+	@Test
+	public void testRemove() {
+		OffHeapStore store = new OffHeapStore(16, 4096);
+		Map<ByteBuffer, ByteBuffer> kept = new HashMap<>();
+		for (int i = 0; i < 2000; i++) {
+			ByteBuffer value = bytes("node " + i);
+			ByteBuffer hash = Common.sha256(value);
+			store.put(hash, value);
+			if (i % 2 == 0) kept.put(hash, value);
+		}
+		store.commit();
+
+		for (ByteBuffer hash : store.hashes()) {
+			if (!kept.containsKey(hash)) store.remove(hash);
+		}
+		store.remove(Common.sha256(bytes("missing")));
+		assertEquals(2000, store.size()); // removals are staged too
+		assertTrue(store.commit());
+
+		// entries shifted back into emptied slots must still be found
+		assertEquals(kept.size(), store.size());
+		assertEquals(kept.keySet(), new HashSet<>(store.hashes()));
+		for (Map.Entry<ByteBuffer, ByteBuffer> e : kept.entrySet()) {
+			assertEquals(e.getValue(), store.get(e.getKey()));
+		}
+		assertNull(store.get(Common.sha256(bytes("node 1"))));
+	}
+
+	@Test
+	public void testTrieOnOffHeapStore() {
+		Map<Long, Long> values = new HashMap<>();
+		Random r = new Random();
+		for (int i = 0; i < 2000; i++) values.put(r.nextLong(), r.nextLong());
+
+		Trie<Long, Long> expected = new Trie.TrieBuilder<Long, Long>()
+				.keySerializer(Serializer.INT64)
+				.valueSerializer(Serializer.INT64)
+				.from(values)
+				.build();
+
+		Trie<Long, Long> actual = new Trie.TrieBuilder<Long, Long>()
+				.keySerializer(Serializer.INT64)
+				.valueSerializer(Serializer.INT64)
+				.store(new OffHeapStore(16, 4096))
+				.from(values)
+				.build();
+
+		assertEquals(expected.getRootHash(), actual.getRootHash());
+		assertEquals(values, actual.toMap());
+	}
+}
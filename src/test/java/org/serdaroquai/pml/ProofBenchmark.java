@@ -0,0 +1,133 @@
+package org.serdaroquai.pml;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Run with: mvn verify -Pbenchmark -DskipTests -Djmh.args="ProofBenchmark"
+ *
+ * Reports proof size in bytes as a secondary counter of prove.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProofBenchmark {
+
+	static final int BATCH = 100;
+
+	@Param({"1000", "100000"})
+	int size;
+
+	Trie<Long, Long> trie;
+	Long[] keys;
+	Proof[] proofs;
+	List<Long> batchKeys;
+	Proof[] batchProofs;
+	BatchProof batchProof;
+	int next;
+
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	@State(Scope.Thread)
+	public static class ProofSize {
+		public long proofBytes;
+		public long proofNodes;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			proofBytes = 0;
+			proofNodes = 0;
+		}
+	}
+
+	@Setup
+	public void setup() {
+		Random r = new Random(42);
+		Map<Long, Long> values = new HashMap<>();
+		while (values.size() < size) {
+			values.put(r.nextLong(), r.nextLong());
+		}
+		trie = new Trie.TrieBuilder<Long, Long>()
+				.keySerializer(Serializer.INT64)
+				.valueSerializer(Serializer.INT64)
+				.from(values)
+				.build();
+
+		keys = values.keySet().toArray(new Long[0]);
+		proofs = new Proof[Math.min(keys.length, 1024)];
+		for (int i = 0; i < proofs.length; i++) proofs[i] = trie.prove(keys[i]);
+
+		batchKeys = Arrays.asList(keys).subList(0, Math.min(keys.length, BATCH));
+		batchProofs = new Proof[batchKeys.size()];
+		for (int i = 0; i < batchProofs.length; i++) batchProofs[i] = trie.prove(batchKeys.get(i));
+		batchProof = trie.proveAll(batchKeys);
+	}
+
+	@Benchmark
+	public Proof prove(ProofSize counters) {
+		Proof proof = trie.prove(keys[next++ % keys.length]);
+		counters.proofBytes += proof.byteSize();
+		counters.proofNodes += proof.getNodes().size();
+		return proof;
+	}
+
+	@Benchmark
+	public ByteBuffer verify() {
+		return proofs[next++ % proofs.length].verify(trie.getRootHash());
+	}
+
+	/**
+	 * {@value #BATCH} keys proven one by one, as a baseline for batch proofs
+	 */
+	@Benchmark
+	public int proveSeparately(ProofSize counters) {
+		int bytes = 0;
+		for (Long key : batchKeys) {
+			Proof proof = trie.prove(key);
+			bytes += proof.byteSize();
+			counters.proofNodes += proof.getNodes().size();
+		}
+		counters.proofBytes += bytes;
+		return bytes;
+	}
+
+	@Benchmark
+	public BatchProof proveBatch(ProofSize counters) {
+		BatchProof proof = trie.proveAll(batchKeys);
+		counters.proofBytes += proof.byteSize();
+		counters.proofNodes += proof.getNodes().size();
+		return proof;
+	}
+
+	@Benchmark
+	public void verifySeparately(Blackhole blackhole) {
+		for (Proof proof : batchProofs) blackhole.consume(proof.verify(trie.getRootHash()));
+	}
+
+	@Benchmark
+	public Map<ByteBuffer, ByteBuffer> verifyBatch() {
+		return batchProof.verify(trie.getRootHash());
+	}
+}
@@ -0,0 +1,129 @@
+package org.serdaroquai.pml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.serdaroquai.pml.TestTries.bytes;
+import static org.serdaroquai.pml.TestTries.trieOf;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ProofTest {
+
+	private static void assertInvalid(ByteBuffer rootHash, Proof proof) {
+		try {
+			proof.verify(rootHash);
+			fail("Proof should not hold");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testInclusionAndExclusion() {
+		Map<String, String> values = new HashMap<>();
+		Random r = new Random(1);
+		for (int i = 0; i < 500; i++) values.put("key" + r.nextInt(5000), "value " + i);
+		values.put("do", "verb");
+		values.put("dog", "puppy");
+		values.put("doge", "coin");
+		Trie<String, String> trie = trieOf(values);
+		ByteBuffer rootHash = trie.getRootHash();
+
+		for (Map.Entry<String, String> e : values.entrySet()) {
+			Proof proof = trie.prove(e.getKey());
+			assertEquals(bytes(e.getValue()), proof.verify(rootHash));
+			assertEquals(bytes(e.getValue()), Proof.verify(rootHash, bytes(e.getKey()), proof.getNodes()));
+		}
+
+		for (String absent : new String[] {"d", "dogs", "key", "key50000", "zzz", ""}) {
+			if (values.containsKey(absent)) continue;
+			assertNull(absent, trie.prove(absent).verify(rootHash));
+		}
+	}
+
+	@Test
+	public void testProofIsMinimal() {
+		Map<String, String> values = new HashMap<>();
+		for (int i = 0; i < 1000; i++) values.put("key" + i, "value " + i);
+		Trie<String, String> trie = trieOf(values);
+
+		Proof proof = trie.prove("key500");
+		// only stored nodes on the path, no more than the nibbles of the key
+		assertTrue(proof.getNodes().size() <= 2 * "key500".length());
+		for (int i = 1; i < proof.getNodes().size(); i++) {
+			List<ByteBuffer> missing = new ArrayList<>(proof.getNodes());
+			missing.remove(i);
+			assertInvalid(trie.getRootHash(), new Proof(proof.getKey(), missing));
+		}
+	}
+
+	@Test
+	public void testProofDoesNotHoldForOtherRoot() {
+		Map<String, String> values = new HashMap<>();
+		for (int i = 0; i < 100; i++) values.put("key" + i, "value " + i);
+		Trie<String, String> trie = trieOf(values);
+		ByteBuffer oldRoot = trie.getRootHash();
+		Proof oldProof = trie.prove("key7");
+
+		trie.put("key7", "changed");
+		assertInvalid(trie.getRootHash(), oldProof);
+		assertEquals(bytes("value 7"), oldProof.verify(oldRoot));
+		assertEquals(bytes("value 7"), trie.prove(oldRoot, "key7").verify(oldRoot));
+		assertEquals(bytes("changed"), trie.prove("key7").verify(trie.getRootHash()));
+	}
+
+	@Test
+	public void testTamperedNodeIsRejected() {
+		Map<String, String> values = new HashMap<>();
+		for (int i = 0; i < 100; i++) values.put("key" + i, "value " + i);
+		Trie<String, String> trie = trieOf(values);
+		Proof proof = trie.prove("key42");
+
+		List<ByteBuffer> tampered = new ArrayList<>();
+		for (ByteBuffer node : proof.getNodes()) {
+			byte[] copy = Common.copyOf(node);
+			copy[copy.length - 1] ^= 1;
+			tampered.add(ByteBuffer.wrap(copy));
+		}
+		assertInvalid(trie.getRootHash(), new Proof(proof.getKey(), tampered));
+	}
+
+	@Test
+	public void testWireFormat() {
+		Map<String, String> values = new HashMap<>();
+		for (int i = 0; i < 100; i++) values.put("key" + i, "value " + i);
+		Trie<String, String> trie = trieOf(values);
+		Proof proof = trie.prove("key42");
+
+		Proof decoded = Proof.from(proof.toByteBuffer());
+		assertEquals(proof.getKey(), decoded.getKey());
+		assertEquals(proof.getNodes(), decoded.getNodes());
+		assertEquals(bytes("value 42"), decoded.verify(trie.getRootHash()));
+
+		try {
+			ByteBuffer truncated = proof.toByteBuffer();
+			truncated.limit(truncated.limit() - 1);
+			Proof.from(truncated);
+			fail("Truncated proof should not parse");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testEmptyTrie() {
+		Trie<String, String> trie = trieOf(new HashMap<>());
+		Proof proof = trie.prove("anything");
+		assertEquals(0, proof.getNodes().size());
+		assertNull(proof.verify(trie.getRootHash()));
+	}
+}
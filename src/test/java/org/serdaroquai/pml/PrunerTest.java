@@ -0,0 +1,226 @@
+package org.serdaroquai.pml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PrunerTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static Trie<Long, Long> newTrie(Store store) {
+		return new Trie.TrieBuilder<Long, Long>()
+				.keySerializer(Serializer.INT64)
+				.valueSerializer(Serializer.INT64)
+				.store(store)
+				.build();
+	}
+
+	private static Trie<Long, Long> fresh(Map<Long, Long> values) {
+		return new Trie.TrieBuilder<Long, Long>()
+				.keySerializer(Serializer.INT64)
+				.valueSerializer(Serializer.INT64)
+				.from(values)
+				.build();
+	}
+
+	@Test
+	public void testPruneKeepsOnlyRetainedRoots() {
+		MemoryStore store = new MemoryStore();
+		Trie<Long, Long> trie = newTrie(store);
+		Random r = new Random(7);
+
+		Map<Long, Long> values = new HashMap<>();
+		for (int i = 0; i < 500; i++) {
+			long key = r.nextLong(), value = r.nextLong();
+			values.put(key, value);
+			trie.put(key, value);
+		}
+		ByteBuffer retained = trie.getRootHash();
+		Map<Long, Long> retainedValues = new HashMap<>(values);
+
+		for (int i = 0; i < 500; i++) {
+			long key = r.nextLong(), value = r.nextLong();
+			values.put(key, value);
+			trie.put(key, value);
+		}
+		ByteBuffer dropped = trie.getRootHash();
+		trie.put(1L, 1L);
+		values.put(1L, 1L);
+
+		int before = store.size();
+		long removed = trie.prune(Collections.singleton(retained));
+
+		assertTrue(removed > 0);
+		assertEquals(before - removed, store.size());
+		assertEquals(values, trie.toMap());
+		assertEquals(retainedValues, trie.toMap(retained));
+		assertNull(store.get(dropped));
+
+		// nothing left to prune
+		assertEquals(0, trie.prune(Collections.singleton(retained)));
+	}
+
+	@Test
+	public void testPruneCurrentRootOnly() {
+		MemoryStore store = new MemoryStore();
+		Trie<Long, Long> trie = newTrie(store);
+		Map<Long, Long> values = new HashMap<>();
+		for (long i = 0; i < 300; i++) {
+			values.put(i, i * i);
+			trie.put(i, i * i);
+		}
+		trie.prune(Collections.emptyList());
+
+		// exactly the nodes a freshly built trie stores
+		Trie<Long, Long> expected = fresh(values);
+		assertEquals(expected.getRootHash(), trie.getRootHash());
+		assertEquals(((MemoryStore) expected.getStore()).size(), store.size());
+		assertEquals(values, trie.toMap());
+	}
+
+	@Test
+	public void testIncrementalPruneInterleavedWithUpdates() {
+		OffHeapStore store = new OffHeapStore(16, 4096);
+		Trie<Long, Long> trie = newTrie(store);
+		Random r = new Random(11);
+
+		Map<Long, Long> values = new HashMap<>();
+		for (int i = 0; i < 1000; i++) {
+			long key = r.nextInt(2000), value = r.nextLong();
+			values.put(key, value);
+			trie.put(key, value);
+		}
+		ByteBuffer retained = trie.getRootHash();
+		Map<Long, Long> retainedValues = new HashMap<>(values);
+
+		Pruner pruner = trie.pruner(Arrays.asList(retained));
+		int steps = 0;
+		while (!pruner.step(16)) {
+			// updates reuse, remove and resurrect nodes while pruning goes on
+			long key = r.nextInt(2000);
+			if (r.nextBoolean()) {
+				long value = r.nextLong();
+				values.put(key, value);
+				trie.put(key, value);
+			} else {
+				values.remove(key);
+				trie.remove(key);
+			}
+			steps++;
+		}
+
+		assertTrue(steps > 1);
+		assertTrue(pruner.isDone());
+		assertTrue(pruner.getRemovedCount() > 0);
+		assertEquals(values, trie.toMap());
+		assertEquals(retainedValues, trie.toMap(retained));
+		assertTrue(pruner.step(1));
+	}
+
+	@Test
+	public void testFailedCommitIsSweptAgain() throws IOException {
+		Path directory = folder.getRoot().toPath();
+		boolean[] failing = new boolean[1];
+		Map<Long, Long> values = new HashMap<>();
+		ByteBuffer rootHash;
+
+		try (FileStore store = new FileStore(directory, 4096) {
+			@Override
+			void writeHeader(long address) {
+				if (failing[0]) throw new UncheckedIOException(new IOException("Disk is gone"));
+				super.writeHeader(address);
+			}
+		}) {
+			Trie<Long, Long> trie = newTrie(store);
+			for (long i = 0; i < 300; i++) {
+				values.put(i, i * i);
+				trie.put(i, i * i);
+			}
+			rootHash = trie.getRootHash();
+			int before = store.hashes().size();
+
+			Pruner pruner = trie.pruner(Collections.emptyList());
+			failing[0] = true;
+			assertFalse(pruner.step(Integer.MAX_VALUE));
+			assertEquals(0, pruner.getRemovedCount());
+			assertEquals(before, store.hashes().size());
+
+			// an update failing in between steps
+			trie.put(1000L, 1L);
+			assertEquals(rootHash, trie.getRootHash());
+
+			failing[0] = false;
+			assertTrue(pruner.step(Integer.MAX_VALUE));
+			assertEquals(before - pruner.getRemovedCount(), store.hashes().size());
+			assertEquals(((MemoryStore) fresh(values).getStore()).size(), store.hashes().size());
+		}
+
+		try (FileStore store = new FileStore(directory, 4096)) {
+			assertEquals(((MemoryStore) fresh(values).getStore()).size(), store.hashes().size());
+			assertEquals(values, new Trie.TrieBuilder<Long, Long>()
+					.keySerializer(Serializer.INT64)
+					.valueSerializer(Serializer.INT64)
+					.store(store)
+					.rootHash(rootHash)
+					.build()
+					.toMap());
+		}
+	}
+
+	@Test
+	public void testPruneClearsNodeCache() {
+		Trie<Long, Long> trie = new Trie.TrieBuilder<Long, Long>()
+				.keySerializer(Serializer.INT64)
+				.valueSerializer(Serializer.INT64)
+				.nodeCache(1024)
+				.build();
+		for (long i = 0; i < 100; i++) trie.put(i, i);
+		ByteBuffer dropped = trie.getRootHash();
+		trie.get(dropped, 5L); // caches nodes of dropped root
+		trie.put(5L, 6L);
+
+		trie.prune(Collections.emptyList());
+
+		assertNull(trie.getNodeCache().get(dropped));
+		assertEquals(Long.valueOf(6L), trie.get(5L));
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void testPruneNeedsDeletes() {
+		// a store written against the original interface, without deletes or listing
+		Map<ByteBuffer, ByteBuffer> nodes = new HashMap<>();
+		Trie<Long, Long> trie = newTrie(new Store() {
+			@Override
+			public ByteBuffer get(ByteBuffer hash) { return nodes.get(hash); }
+			@Override
+			public void put(ByteBuffer hash, ByteBuffer encoded) { nodes.put(hash, encoded); }
+			@Override
+			public void dumpAll() {}
+			@Override
+			public boolean commit() { return true; }
+			@Override
+			public void rollback() {}
+		});
+		trie.put(1L, 1L);
+		trie.put(2L, 2L);
+		assertEquals(Long.valueOf(2L), trie.get(2L));
+		trie.prune(Collections.emptyList());
+	}
+}
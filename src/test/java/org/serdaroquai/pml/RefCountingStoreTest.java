@@ -0,0 +1,252 @@
+package org.serdaroquai.pml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.google.protobuf.ByteString;
+
+public class RefCountingStoreTest {
+
+	private static Trie<Long, Long> newTrie(Store store) {
+		return new Trie.TrieBuilder<Long, Long>()
+				.keySerializer(Serializer.INT64)
+				.valueSerializer(Serializer.INT64)
+				.store(store)
+				.build();
+	}
+
+	private static ByteBuffer node(String value) {
+		return ByteBuffer.wrap(Common.BRANCH_NODE_PROTOTYPE.toBuilder()
+				.setItem(16, ByteString.copyFromUtf8(value))
+				.build()
+				.toByteArray());
+	}
+
+	private static int freshSize(Map<Long, Long> values) {
+		MemoryStore store = new MemoryStore();
+		new Trie.TrieBuilder<Long, Long>()
+				.keySerializer(Serializer.INT64)
+				.valueSerializer(Serializer.INT64)
+				.store(store)
+				.from(values)
+				.build();
+		return store.size();
+	}
+
+	@Test
+	public void testReleasingPastRootsKeepsStoreFlat() {
+		MemoryStore memoryStore = new MemoryStore();
+		RefCountingStore store = new RefCountingStore(memoryStore);
+		Trie<Long, Long> trie = newTrie(store);
+		Random r = new Random(3);
+
+		Map<Long, Long> values = new HashMap<>();
+		for (int i = 0; i < 2000; i++) {
+			ByteBuffer previous = trie.getRootHash();
+			long key = r.nextInt(300), value = r.nextLong();
+			values.put(key, value);
+			if (r.nextInt(4) == 0) {
+				trie.putAll(Collections.singletonMap(key, value));
+			} else {
+				trie.put(key, value);
+			}
+			trie.release(previous);
+		}
+
+		// exactly the nodes of current root are left
+		assertEquals(freshSize(values), memoryStore.size());
+		assertEquals(memoryStore.size(), store.size());
+		assertEquals(values, trie.toMap());
+		assertEquals(1, store.refCount(trie.getRootHash()));
+	}
+
+	@Test
+	public void testRetainedRootSurvivesUntilReleased() {
+		MemoryStore memoryStore = new MemoryStore();
+		RefCountingStore store = new RefCountingStore(memoryStore);
+		Trie<Long, Long> trie = newTrie(store);
+
+		Map<Long, Long> old = new HashMap<>();
+		for (long i = 0; i < 100; i++) {
+			old.put(i, i);
+			trie.put(i, i);
+		}
+		ByteBuffer oldRoot = trie.getRootHash();
+		Map<Long, Long> values = new HashMap<>(old);
+		for (long i = 0; i < 100; i += 2) {
+			values.put(i, i + 1000);
+			trie.put(i, i + 1000);
+		}
+
+		assertEquals(old, trie.toMap(oldRoot));
+		assertEquals(0, trie.release(oldRoot));
+		assertNull(memoryStore.get(oldRoot));
+		assertEquals(values, trie.toMap());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testCanNotReleaseCurrentRoot() {
+		Trie<Long, Long> trie = newTrie(new RefCountingStore(new MemoryStore()));
+		trie.put(1L, 1L);
+		trie.release(trie.getRootHash());
+	}
+
+	@Test
+	public void testReleaseEvictsFreedNodesFromCache() {
+		Set<ByteBuffer> removed = new HashSet<>();
+		MemoryStore memoryStore = new MemoryStore() {
+			@Override
+			protected boolean write(Map<ByteBuffer, ByteBuffer> nodes, Set<ByteBuffer> removals) {
+				removed.addAll(removals);
+				return super.write(nodes, removals);
+			}
+		};
+		Trie<Long, Long> trie = new Trie.TrieBuilder<Long, Long>()
+				.keySerializer(Serializer.INT64)
+				.valueSerializer(Serializer.INT64)
+				.store(new RefCountingStore(memoryStore))
+				.nodeCache(10000)
+				.build();
+		for (long i = 0; i < 500; i++) trie.put(i, i);
+
+		// caches every node of the old root
+		ByteBuffer previous = trie.getRootHash();
+		for (long i = 0; i < 500; i++) assertEquals(Long.valueOf(i), trie.get(previous, i));
+		int cached = trie.getNodeCache().size();
+
+		trie.put(7L, 8L);
+		trie.release(previous);
+		assertFalse(removed.isEmpty());
+		for (ByteBuffer hash : removed) assertNull(trie.getNodeCache().get(hash));
+		assertEquals(cached - removed.size(), trie.getNodeCache().size());
+		assertEquals(Long.valueOf(8L), trie.get(7L));
+	}
+
+	@Test
+	public void testFailedReleaseKeepsCounts() {
+		final boolean[] fail = new boolean[1];
+		MemoryStore memoryStore = new MemoryStore() {
+			@Override
+			protected boolean write(Map<ByteBuffer, ByteBuffer> nodes, Set<ByteBuffer> removals) {
+				return !fail[0] && super.write(nodes, removals);
+			}
+		};
+		RefCountingStore store = new RefCountingStore(memoryStore);
+		Trie<Long, Long> trie = newTrie(store);
+		for (long i = 0; i < 100; i++) trie.put(i, i);
+		ByteBuffer previous = trie.getRootHash();
+		trie.put(7L, 8L);
+		int size = memoryStore.size();
+
+		fail[0] = true;
+		boolean failed = false;
+		try {
+			trie.release(previous);
+		} catch (AssertionError e) {
+			failed = true;
+		}
+		assertTrue(failed);
+		assertEquals(1, store.refCount(previous));
+		assertEquals(size, memoryStore.size());
+		assertEquals(0, memoryStore.stagedCount());
+		assertEquals(Long.valueOf(7L), trie.get(previous, 7L));
+
+		// can be released once commits go through again
+		fail[0] = false;
+		assertEquals(0, trie.release(previous));
+		assertEquals(0, store.refCount(previous));
+		assertNull(memoryStore.get(previous));
+		assertEquals(memoryStore.size(), store.size());
+	}
+
+	@Test
+	public void testPruneThroughRefCountingStore() {
+		MemoryStore memoryStore = new MemoryStore();
+		RefCountingStore store = new RefCountingStore(memoryStore);
+		Trie<Long, Long> trie = newTrie(store);
+		Random r = new Random(5);
+
+		// past roots are never released, only pruned
+		Map<Long, Long> values = new HashMap<>();
+		for (int i = 0; i < 300; i++) {
+			long key = r.nextInt(100), value = r.nextLong();
+			values.put(key, value);
+			trie.put(key, value);
+		}
+		assertTrue(trie.prune(Collections.emptyList()) > 0);
+		assertEquals(freshSize(values), memoryStore.size());
+		assertEquals(memoryStore.size(), store.size());
+
+		// nodes shared with pruned roots lost their references, so releasing keeps the store flat
+		for (int i = 0; i < 300; i++) {
+			ByteBuffer previous = trie.getRootHash();
+			long key = r.nextInt(100), value = r.nextLong();
+			values.put(key, value);
+			trie.put(key, value);
+			trie.release(previous);
+		}
+		assertEquals(freshSize(values), memoryStore.size());
+		assertEquals(memoryStore.size(), store.size());
+		assertEquals(values, trie.toMap());
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void testReleaseNeedsRefCountedStore() {
+		Trie<Long, Long> trie = newTrie(new MemoryStore());
+		ByteBuffer root = trie.put(1L, 1L);
+		trie.put(2L, 2L);
+		trie.release(root);
+	}
+
+	@Test
+	public void testFailedCommitRestoresCounts() {
+		MemoryStore memoryStore = new MemoryStore() {
+			boolean fail;
+			@Override
+			protected boolean write(Map<ByteBuffer, ByteBuffer> nodes, Set<ByteBuffer> removals) {
+				return !(fail = !fail) && super.write(nodes, removals);
+			}
+		};
+		RefCountingStore store = new RefCountingStore(memoryStore);
+
+		ByteBuffer child = node("child");
+		ByteBuffer hash = Common.sha256(child);
+		store.put(hash, child);
+		store.increment(hash);
+		assertFalse(store.commit()); // fails every other time
+		store.rollback();
+		assertEquals(0, store.refCount(hash));
+		assertNull(store.get(hash));
+
+		store.put(hash, child);
+		store.increment(hash);
+		assertTrue(store.commit());
+		assertEquals(1, store.refCount(hash));
+		assertEquals(0, store.decrement(hash));
+		assertNull(store.get(hash));
+	}
+
+	@Test
+	public void testUnreferencedNodesAreNotWritten() {
+		MemoryStore memoryStore = new MemoryStore();
+		RefCountingStore store = new RefCountingStore(memoryStore);
+
+		ByteBuffer node = node("nobody refers to this node");
+		store.put(Common.sha256(node), node);
+		assertTrue(store.commit());
+		assertEquals(0, memoryStore.size());
+		assertEquals(0, store.size());
+	}
+}
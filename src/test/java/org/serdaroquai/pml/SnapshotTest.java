@@ -0,0 +1,136 @@
+package org.serdaroquai.pml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.serdaroquai.pml.TestTries.read;
+import static org.serdaroquai.pml.TestTries.trieOf;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SnapshotTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private MemoryStore store;
+	private Trie<String, String> trie;
+	private Map<String, String> values;
+
+	@Before
+	public void setup() {
+		values = new HashMap<>();
+		for (int i = 0; i < 20000; i++) values.put("key" + i, "value " + i);
+		store = new MemoryStore();
+		trie = trieOf(store, values);
+	}
+
+	private byte[] snapshot() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertEquals(store.size(), Snapshot.write(store, trie.getRootHash(), out));
+		return out.toByteArray();
+	}
+
+	private static void assertRejected(byte[] snapshot) {
+		MemoryStore target = new MemoryStore();
+		try {
+			Snapshot.load(new ByteArrayInputStream(snapshot), target);
+			fail("Snapshot should be rejected");
+		} catch (IOException e) {
+			// expected
+		}
+		assertEquals(0, target.stagedCount());
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		byte[] snapshot = snapshot();
+
+		MemoryStore target = new MemoryStore();
+		assertEquals(trie.getRootHash(), Snapshot.load(new ByteArrayInputStream(snapshot), target));
+		assertEquals(store.size(), target.size());
+		assertEquals(values, read(target, trie.getRootHash()));
+	}
+
+	@Test
+	public void testLoadIntoFileStore() throws IOException {
+		byte[] snapshot = snapshot();
+
+		try (FileStore target = new FileStore(folder.getRoot().toPath())) {
+			Snapshot.load(new ByteArrayInputStream(snapshot), target);
+		}
+		try (FileStore target = new FileStore(folder.getRoot().toPath())) {
+			assertEquals(values, read(target, trie.getRootHash()));
+		}
+	}
+
+	@Test
+	public void testEmptyTrie() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertEquals(0, Snapshot.write(new MemoryStore(), Common.EMPTY_NODE_BYTES, out));
+
+		MemoryStore target = new MemoryStore();
+		assertEquals(Common.EMPTY_NODE_BYTES, Snapshot.load(new ByteArrayInputStream(out.toByteArray()), target));
+		assertEquals(0, target.size());
+	}
+
+	@Test
+	public void testCorruptChunk() throws IOException {
+		byte[] snapshot = snapshot();
+		snapshot[100] ^= 1;
+		assertRejected(snapshot);
+	}
+
+	@Test
+	public void testTruncated() throws IOException {
+		byte[] snapshot = snapshot();
+		assertRejected(Arrays.copyOf(snapshot, snapshot.length - 4));
+		assertRejected(Arrays.copyOf(snapshot, snapshot.length / 2));
+	}
+
+	@Test
+	public void testTamperedNodeWithValidChecksum() throws IOException {
+		byte[] snapshot = snapshot();
+
+		// flip a byte of first node and fix the checksum of its chunk
+		int payloadLength = ByteBuffer.wrap(snapshot, 40, 4).getInt();
+		snapshot[48 + payloadLength / 2] ^= 1;
+		CRC32 checksum = new CRC32();
+		checksum.update(snapshot, 48, payloadLength);
+		ByteBuffer.wrap(snapshot, 44, 4).putInt((int) checksum.getValue());
+
+		assertRejected(snapshot);
+	}
+
+	@Test
+	public void testInterruptedLoadLeavesCompleteSubtrees() throws IOException {
+		byte[] snapshot = snapshot();
+		MemoryStore target = new MemoryStore();
+		try {
+			Snapshot.load(new ByteArrayInputStream(Arrays.copyOf(snapshot, snapshot.length / 2)), target);
+			fail("Snapshot is truncated");
+		} catch (IOException e) {
+			// expected
+		}
+		int loaded = target.size();
+		assertTrue(loaded > 0);
+
+		// a sync picks up where the load left
+		StateSync sync = new StateSync(target, NodeSource.of(store), trie.getRootHash());
+		sync.run();
+		assertEquals(store.size() - loaded, sync.getFetchedCount());
+		assertEquals(values, read(target, trie.getRootHash()));
+	}
+}
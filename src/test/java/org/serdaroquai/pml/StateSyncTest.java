@@ -0,0 +1,152 @@
+package org.serdaroquai.pml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.serdaroquai.pml.TestTries.read;
+import static org.serdaroquai.pml.TestTries.trieOf;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class StateSyncTest {
+
+	private MemoryStore peerStore;
+	private Trie<String, String> peer;
+	private Map<String, String> values;
+
+	@Before
+	public void setup() {
+		values = new HashMap<>();
+		for (int i = 0; i < 5000; i++) values.put("key" + i, "value " + i);
+		peerStore = new MemoryStore();
+		peer = trieOf(peerStore, values);
+	}
+
+	@Test
+	public void testFullSync() {
+		MemoryStore local = new MemoryStore();
+		StateSync sync = new StateSync(local, NodeSource.of(peerStore), peer.getRootHash(), 16);
+		sync.run();
+
+		assertTrue(sync.isDone());
+		assertEquals(0, sync.getPendingCount());
+		assertEquals(peerStore.size(), local.size());
+		assertEquals(peerStore.size(), sync.getFetchedCount());
+		assertEquals(values, read(local, peer.getRootHash()));
+	}
+
+	@Test
+	public void testIncrementalSync() {
+		MemoryStore local = new MemoryStore();
+		new StateSync(local, NodeSource.of(peerStore), peer.getRootHash()).run();
+
+		peer.put("key42", "changed");
+		values.put("key42", "changed");
+
+		StateSync sync = new StateSync(local, NodeSource.of(peerStore), peer.getRootHash());
+		sync.run();
+
+		// only nodes along the changed path
+		assertTrue(sync.getFetchedCount() <= 2 * "key42".length());
+		assertEquals(values, read(local, peer.getRootHash()));
+	}
+
+	@Test
+	public void testResumeAfterInterruption() {
+		NodeSource flaky = new NodeSource() {
+			int calls;
+
+			@Override
+			public Map<ByteBuffer, ByteBuffer> fetch(List<ByteBuffer> hashes) {
+				if (++calls % 3 == 0) throw new RuntimeException("connection lost");
+				return NodeSource.of(peerStore).fetch(hashes);
+			}
+		};
+
+		MemoryStore local = new MemoryStore();
+		StateSync sync = new StateSync(local, flaky, peer.getRootHash(), 8);
+		int failures = 0;
+		while (!sync.isDone()) {
+			try {
+				sync.step();
+			} catch (RuntimeException e) {
+				failures++;
+			}
+		}
+		assertTrue(failures > 0);
+		assertEquals(peerStore.size(), sync.getFetchedCount());
+		assertEquals(values, read(local, peer.getRootHash()));
+	}
+
+	@Test
+	public void testRestartWithNewInstance() {
+		MemoryStore local = new MemoryStore();
+		StateSync first = new StateSync(local, NodeSource.of(peerStore), peer.getRootHash(), 8);
+		for (int i = 0; i < 100; i++) first.step();
+		assertFalse(first.isDone());
+		long committed = local.size();
+		assertTrue(committed > 0);
+
+		StateSync second = new StateSync(local, NodeSource.of(peerStore), peer.getRootHash(), 8);
+		second.run();
+
+		// committed sub trees are not fetched again
+		assertTrue(second.getFetchedCount() <= peerStore.size() - committed);
+		assertEquals(values, read(local, peer.getRootHash()));
+	}
+
+	@Test
+	public void testTamperedNodesAreRejected() {
+		NodeSource liar = new NodeSource() {
+			boolean lie = true;
+
+			@Override
+			public Map<ByteBuffer, ByteBuffer> fetch(List<ByteBuffer> hashes) {
+				Map<ByteBuffer, ByteBuffer> result = NodeSource.of(peerStore).fetch(hashes);
+				if (lie && hashes.size() > 1) {
+					byte[] tampered = Common.copyOf(result.get(hashes.get(0)));
+					tampered[tampered.length - 1] ^= 1;
+					result.put(hashes.get(0), ByteBuffer.wrap(tampered));
+					lie = false;
+				}
+				return result;
+			}
+		};
+
+		MemoryStore local = new MemoryStore();
+		StateSync sync = new StateSync(local, liar, peer.getRootHash());
+		sync.run();
+
+		assertEquals(1, sync.getRejectedCount());
+		assertEquals(values, read(local, peer.getRootHash()));
+	}
+
+	@Test
+	public void testMissingNode() {
+		MemoryStore local = new MemoryStore();
+		StateSync sync = new StateSync(local, hashes -> new HashMap<>(), peer.getRootHash());
+		try {
+			sync.run();
+			fail("Nothing can be fetched");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		assertFalse(sync.isDone());
+		assertEquals(0, local.size());
+	}
+
+	@Test
+	public void testAlreadySynced() {
+		StateSync sync = new StateSync(peerStore, hashes -> { throw new AssertionError(); }, peer.getRootHash());
+		assertTrue(sync.isDone());
+		assertTrue(sync.step());
+		assertTrue(new StateSync(new MemoryStore(), hashes -> { throw new AssertionError(); }, Common.EMPTY_NODE_BYTES).isDone());
+	}
+}
@@ -0,0 +1,57 @@
+package org.serdaroquai.pml;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Tries of String keys and values, and their bytes, shared by tests
+ *
+ * @author tr1b6162
+ *
+ */
+final class TestTries {
+
+	private TestTries() {}
+
+	static Trie.TrieBuilder<String, String> builder() {
+		return new Trie.TrieBuilder<String, String>()
+				.keySerializer(Serializer.STRING_UTF8)
+				.valueSerializer(Serializer.STRING_UTF8);
+	}
+
+	static Trie<String, String> trieOf(Map<String, String> values) {
+		return builder().from(values).build();
+	}
+
+	static Trie<String, String> trieOf(Store store, Map<String, String> values) {
+		return builder().store(store).from(values).build();
+	}
+
+	/**
+	 * @param store
+	 * @param rootHash
+	 * @return every key value pair reachable from given root
+	 */
+	static Map<String, String> read(Store store, ByteBuffer rootHash) {
+		return builder().store(store).rootHash(rootHash).build().toMap(rootHash);
+	}
+
+	static ByteBuffer bytes(String s) {
+		return Serializer.STRING_UTF8.serialize(s);
+	}
+
+	/**
+	 * @param r
+	 * @param minLength
+	 * @param maxLength
+	 * @param alphabet
+	 * @return concatenation of minLength to maxLength (inclusive) random pieces of given alphabet
+	 */
+	static String randomKey(Random r, int minLength, int maxLength, String... alphabet) {
+		StringBuilder sb = new StringBuilder();
+		int length = minLength + r.nextInt(maxLength - minLength + 1);
+		for (int i = 0; i < length; i++) sb.append(alphabet[r.nextInt(alphabet.length)]);
+		return sb.toString();
+	}
+}
@@ -0,0 +1,120 @@
+package org.serdaroquai.pml;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Run with: mvn verify -Pbenchmark -DskipTests -Djmh.args="TrieBenchmark"
+ * Allocations per lookup: mvn verify -Pbenchmark -DskipTests -Djmh.args="TrieBenchmark.get -prof gc"
+ * Allocations per update: mvn verify -Pbenchmark -DskipTests -Djmh.args="TrieBenchmark.put -prof gc"
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TrieBenchmark {
+
+	@Param({"1000", "10000", "100000"})
+	int size;
+
+	Map<Long, Long> values;
+	Trie<Long, Long> built;
+	byte[] snapshot;
+	Long[] keys;
+	int next;
+
+	@Setup
+	public void setup() {
+		Random r = new Random(42);
+		values = new HashMap<>();
+		while (values.size() < size) {
+			values.put(r.nextLong(), r.nextLong());
+		}
+		built = newTrie();
+		built.putAll(values);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			Snapshot.write(built.getStore(), built.getRootHash(), out);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		snapshot = out.toByteArray();
+		keys = values.keySet().toArray(new Long[0]);
+	}
+
+	private Trie<Long, Long> newTrie() {
+		return new Trie.TrieBuilder<Long, Long>()
+				.keySerializer(Serializer.INT64)
+				.valueSerializer(Serializer.INT64)
+				.build();
+	}
+
+	@Benchmark
+	public ByteBuffer putLoop() {
+		Trie<Long, Long> trie = newTrie();
+		for (Map.Entry<Long, Long> e : values.entrySet()) {
+			trie.put(e.getKey(), e.getValue());
+		}
+		return trie.getRootHash();
+	}
+
+	@Benchmark
+	public ByteBuffer putAll() {
+		return newTrie().putAll(values);
+	}
+
+	@Benchmark
+	public ByteBuffer loadSnapshot() throws IOException {
+		// cold start of the same state as putAll
+		return Snapshot.load(new ByteArrayInputStream(snapshot), new MemoryStore());
+	}
+
+	@Benchmark
+	public Long get() {
+		if (next == keys.length) next = 0;
+		return built.get(keys[next++]);
+	}
+
+	@Benchmark
+	public long scan() {
+		return built.stream().mapToLong(Map.Entry::getValue).sum();
+	}
+
+	@Benchmark
+	public long scanParallel() {
+		return built.stream().parallel().mapToLong(Map.Entry::getValue).sum();
+	}
+
+	@Benchmark
+	public ByteBuffer putAllParallel() {
+		return new Trie.TrieBuilder<Long, Long>()
+				.keySerializer(Serializer.INT64)
+				.valueSerializer(Serializer.INT64)
+				.parallelHashing(ForkJoinPool.commonPool())
+				.build()
+				.putAll(values);
+	}
+}
@@ -0,0 +1,188 @@
+package org.serdaroquai.pml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.serdaroquai.pml.TestTries.randomKey;
+import static org.serdaroquai.pml.TestTries.trieOf;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Supplier;
+
+import org.junit.Test;
+
+public class TrieDiffTest {
+
+	private static class CountingStore extends MemoryStore {
+		int reads;
+
+		@Override
+		protected ByteBuffer read(ByteBuffer hash) {
+			reads++;
+			return super.read(hash);
+		}
+	}
+
+	private static void assertDifference(Map<String, String> before, Map<String, String> after,
+			Map<String, String> remove, Map<String, String> update) {
+
+		Map<String, String> expectedRemove = new HashMap<>();
+		Map<String, String> expectedUpdate = new HashMap<>();
+		before.forEach((k, v) -> { if (!v.equals(after.get(k))) expectedRemove.put(k, v); });
+		after.forEach((k, v) -> { if (!v.equals(before.get(k))) expectedUpdate.put(k, v); });
+
+		assertEquals(expectedRemove, remove);
+		assertEquals(expectedUpdate, update);
+	}
+
+	@Test
+	public void testVariableLengthKeys() {
+		Random r = new Random(7);
+		String[] alphabet = {"a", "b", "ab", "ba", "abc", "ç"};
+
+		for (int round = 0; round < 300; round++) {
+			Map<String, String> before = new HashMap<>();
+			int size = r.nextInt(60);
+			for (int i = 0; i < size; i++) before.put(randomKey(r, 0, 3, alphabet), "v" + r.nextInt(3));
+
+			Trie<String, String> trie = trieOf(new MemoryStore(), before);
+			ByteBuffer oldRoot = trie.getRootHash();
+
+			Map<String, String> after = new HashMap<>(before);
+			List<String> keys = new ArrayList<>(before.keySet());
+			int changes = r.nextInt(20);
+			for (int i = 0; i < changes; i++) {
+				if (!keys.isEmpty() && r.nextBoolean()) {
+					String key = keys.get(r.nextInt(keys.size()));
+					after.remove(key);
+					trie.remove(key);
+				} else {
+					String key = randomKey(r, 0, 3, alphabet), value = "v" + r.nextInt(3);
+					after.put(key, value);
+					trie.put(key, value);
+				}
+			}
+
+			Map<String, String> remove = new HashMap<>();
+			Map<String, String> update = new HashMap<>();
+			trie.difference(oldRoot, remove, update);
+			assertDifference(before, after, remove, update);
+		}
+	}
+
+	@Test
+	public void testOrderedByKey() {
+		Map<String, String> before = new HashMap<>();
+		for (int i = 0; i < 1000; i++) before.put("key" + i, "value " + i);
+		Trie<String, String> trie = trieOf(new MemoryStore(), before);
+		ByteBuffer oldRoot = trie.getRootHash();
+		for (int i = 0; i < 1000; i += 3) trie.put("key" + i, "changed");
+		trie.put("key", "new");
+		trie.remove("key999");
+
+		List<ByteBuffer> keys = new ArrayList<>();
+		TrieDiff.diff(trie, oldRoot, trie.getRootHash(), (key, oldValue, newValue) -> keys.add(key));
+
+		assertEquals(334 + 1, keys.size()); // key999 is both changed and removed
+		for (int i = 1; i < keys.size(); i++) {
+			assertTrue(keys.get(i - 1).compareTo(keys.get(i)) < 0);
+		}
+	}
+
+	@Test
+	public void testSharedSubtreesAreNotRead() {
+		CountingStore store = new CountingStore();
+		Map<String, String> values = new HashMap<>();
+		for (int i = 0; i < 20000; i++) values.put("key" + i, "value " + i);
+		Trie<String, String> trie = trieOf(store, values);
+		ByteBuffer oldRoot = trie.getRootHash();
+
+		trie.put("key4242", "changed");
+		trie.put("key17", "changed");
+		trie.put("new key", "added");
+
+		store.reads = 0;
+		Map<String, String> remove = new HashMap<>();
+		Map<String, String> update = new HashMap<>();
+		trie.difference(oldRoot, remove, update);
+
+		Map<String, String> after = new HashMap<>(values);
+		after.put("key4242", "changed");
+		after.put("key17", "changed");
+		after.put("new key", "added");
+		assertDifference(values, after, remove, update);
+
+		// only nodes on the three changed paths of both roots
+		assertTrue("read " + store.reads + " nodes", store.reads <= 2 * 3 * 2 * "new key".length());
+	}
+
+	@Test
+	public void testVisitor() {
+		Map<String, String> before = new HashMap<>();
+		for (int i = 0; i < 100; i++) before.put("key" + i, "value " + i);
+		Trie<String, String> trie = trieOf(new MemoryStore(), before);
+		ByteBuffer oldRoot = trie.getRootHash();
+		trie.put("key1", "changed");
+		trie.put("key100", "added");
+		trie.remove("key2");
+		ByteBuffer newRoot = trie.getRootHash();
+
+		List<String> events = new ArrayList<>();
+		DiffVisitor<String, String> visitor = new DiffVisitor<String, String>() {
+			@Override
+			public void onAdded(String key, Supplier<String> value) {
+				events.add("+" + key + "=" + value.get());
+			}
+
+			@Override
+			public void onRemoved(String key, Supplier<String> oldValue) {
+				events.add("-" + key + "=" + oldValue.get());
+			}
+
+			@Override
+			public void onChanged(String key, Supplier<String> oldValue, Supplier<String> newValue) {
+				events.add("~" + key + "=" + oldValue.get() + ">" + newValue.get());
+			}
+		};
+
+		trie.diff(oldRoot, visitor);
+		assertEquals(Arrays.asList("~key1=value 1>changed", "+key100=added", "-key2=value 2"), events);
+
+		// reversed roots
+		events.clear();
+		trie.diff(newRoot, oldRoot, visitor);
+		assertEquals(Arrays.asList("~key1=changed>value 1", "-key100=added", "+key2=value 2"), events);
+
+		// nothing to report
+		events.clear();
+		trie.diff(newRoot, visitor);
+		assertTrue(events.isEmpty());
+	}
+
+	@Test
+	public void testDiffSerialized() {
+		Map<String, String> before = new HashMap<>();
+		for (int i = 0; i < 100; i++) before.put("key" + i, "value " + i);
+		Trie<String, String> trie = trieOf(new MemoryStore(), before);
+		ByteBuffer oldRoot = trie.getRootHash();
+		trie.put("key7", "changed");
+
+		List<ByteBuffer> changed = new ArrayList<>();
+		trie.diffSerialized(oldRoot, trie.getRootHash(), new DiffVisitor<ByteBuffer, ByteBuffer>() {
+			@Override
+			public void onChanged(ByteBuffer key, Supplier<ByteBuffer> oldValue, Supplier<ByteBuffer> newValue) {
+				changed.add(key);
+				assertEquals(Serializer.STRING_UTF8.serialize("value 7"), oldValue.get());
+				assertEquals(Serializer.STRING_UTF8.serialize("changed"), newValue.get());
+			}
+		});
+		assertEquals(1, changed.size());
+		assertEquals(Serializer.STRING_UTF8.serialize("key7"), changed.get(0));
+	}
+
+}
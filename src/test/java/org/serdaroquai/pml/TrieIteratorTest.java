@@ -0,0 +1,130 @@
+package org.serdaroquai.pml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.serdaroquai.pml.TestTries.builder;
+import static org.serdaroquai.pml.TestTries.trieOf;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TrieIteratorTest {
+
+	private TreeMap<String, String> expected; // ascii keys, so String order is byte order
+	private Trie<String, String> trie;
+	private Random r = new Random(5);
+
+	private String randomKey() {
+		return TestTries.randomKey(r, 1, 4, "a", "b", "c", "d");
+	}
+
+	private static <K,V> List<Map.Entry<K,V>> drain(Iterator<Map.Entry<K,V>> iterator) {
+		List<Map.Entry<K,V>> result = new ArrayList<>();
+		iterator.forEachRemaining(result::add);
+		return result;
+	}
+
+	@Before
+	public void setup() {
+		expected = new TreeMap<>();
+		for (int i = 0; i < 200; i++) expected.put(randomKey(), "value " + i);
+
+		trie = trieOf(expected);
+	}
+
+	@Test
+	public void testIteratesInKeyOrder() {
+		assertEquals(new ArrayList<>(expected.entrySet()), drain(trie.iterator()));
+	}
+
+	@Test
+	public void testRange() {
+		for (int i = 0; i < 200; i++) {
+			String from = randomKey(), to = randomKey();
+			if (from.compareTo(to) > 0) {
+				String temp = from; from = to; to = temp;
+			}
+			assertEquals(from + ".." + to,
+					new ArrayList<>(expected.subMap(from, to).entrySet()),
+					drain(trie.range(from, to)));
+		}
+		assertEquals(new ArrayList<>(expected.tailMap("b").entrySet()), drain(trie.range("b", null)));
+		assertEquals(new ArrayList<>(expected.headMap("b").entrySet()), drain(trie.range(null, "b")));
+	}
+
+	@Test
+	public void testPrefix() {
+		for (String prefix : new String[] {"a", "b", "ab", "dd", "abc", "ccccc"}) {
+			assertEquals(prefix,
+					new ArrayList<>(expected.subMap(prefix, prefix + Character.MAX_VALUE).entrySet()),
+					drain(trie.prefix(prefix)));
+		}
+	}
+
+	@Test
+	public void testSeek() {
+		TrieIterator<String, String> iterator = trie.iterator();
+		for (int i = 0; i < 200; i++) {
+			String key = randomKey();
+			Map.Entry<String, String> ceiling = expected.ceilingEntry(key);
+			iterator.seek(key);
+			if (ceiling == null) {
+				assertFalse(iterator.hasNext());
+			} else {
+				assertEquals(key, ceiling, iterator.next());
+			}
+		}
+
+		// resume paging after last seen key
+		List<Map.Entry<String, String>> paged = new ArrayList<>();
+		iterator = trie.iterator();
+		while (iterator.hasNext()) {
+			String last = null;
+			for (int i = 0; i < 7 && iterator.hasNext(); i++) {
+				Map.Entry<String, String> e = iterator.next();
+				paged.add(e);
+				last = e.getKey();
+			}
+			iterator = trie.iterator().seek(last + '\0');
+		}
+		assertEquals(new ArrayList<>(expected.entrySet()), paged);
+	}
+
+	@Test
+	public void testForEachAndStream() {
+		List<Map.Entry<String, String>> visited = new ArrayList<>();
+		trie.forEach((k, v) -> visited.add(new AbstractMap.SimpleImmutableEntry<>(k, v)));
+		assertEquals(new ArrayList<>(expected.entrySet()), visited);
+
+		assertEquals(new ArrayList<>(expected.entrySet()), trie.stream().collect(Collectors.toList()));
+		assertEquals(expected.keySet().stream().filter(k -> k.startsWith("a")).count(),
+				trie.stream().filter(e -> e.getKey().startsWith("a")).count());
+		assertEquals(expected, trie.toMap());
+	}
+
+	@Test
+	public void testPastRootIsNotAffectedByUpdates() {
+		List<Map.Entry<String, String>> before = new ArrayList<>(expected.entrySet());
+		Iterator<Map.Entry<String, String>> iterator = trie.iterator();
+		trie.put("aaaa", "changed");
+		trie.remove(expected.lastKey());
+		assertEquals(before, drain(iterator));
+	}
+
+	@Test(expected = NoSuchElementException.class)
+	public void testEmptyTrie() {
+		Trie<String, String> empty = builder().build();
+		assertFalse(empty.iterator().hasNext());
+		empty.iterator().next();
+	}
+}
@@ -0,0 +1,126 @@
+package org.serdaroquai.pml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.serdaroquai.pml.TestTries.builder;
+import static org.serdaroquai.pml.TestTries.randomKey;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TrieLookupTest {
+
+	@Test
+	public void testSameAsDecodedNodes() {
+		Random r = new Random(11);
+		for (int round = 0; round < 200; round++) {
+			Map<String, String> values = new HashMap<>();
+			int size = r.nextInt(100);
+			for (int i = 0; i < size; i++) {
+				// short values end up in inlined nodes, long ones in stored nodes
+				String value = r.nextBoolean() ? "v" + i : "a value that is long enough not to be inlined " + i;
+				values.put(randomKey(r, 0, 4, "a", "b", "c"), value);
+			}
+
+			MemoryStore store = new MemoryStore();
+			Trie<String, String> trie = builder().store(store).from(values).build();
+			Trie<String, String> decoded = builder().store(store).rootHash(trie.getRootHash()).nodeCache(100).build();
+
+			for (int i = 0; i < 50; i++) {
+				String key = randomKey(r, 0, 4, "a", "b", "c");
+				ByteBuffer found = TrieLookup.get(store, trie.getRootHash(), Serializer.STRING_UTF8.serialize(key));
+				assertEquals(key, decoded.get(key), Serializer.STRING_UTF8.deserialize(found));
+				if (values.containsKey(key)) assertEquals(values.get(key), trie.get(key));
+			}
+		}
+	}
+
+	@Test
+	public void testMissingKey() {
+		Map<String, String> values = new HashMap<>();
+		values.put("do", "verb");
+		values.put("dog", "puppy");
+		values.put("doge", "coin");
+		values.put("horse", "stallion");
+		MemoryStore store = new MemoryStore();
+		Trie<String, String> trie = builder().store(store).from(values).build();
+
+		for (String missing : new String[] {"", "d", "dogs", "doe", "horses", "zzz"}) {
+			assertEquals(missing, Common.EMPTY_NODE_BYTES,
+					TrieLookup.get(store, trie.getRootHash(), Serializer.STRING_UTF8.serialize(missing)));
+		}
+		assertEquals(Common.EMPTY_NODE_BYTES,
+				TrieLookup.get(store, Common.EMPTY_NODE_BYTES, Serializer.STRING_UTF8.serialize("do")));
+	}
+
+	@Test
+	public void testOlderRoot() {
+		Trie<Long, Long> trie = new Trie.TrieBuilder<Long, Long>()
+				.keySerializer(Serializer.INT64)
+				.valueSerializer(Serializer.INT64)
+				.build();
+		for (long i = 0; i < 1000; i++) trie.put(i, i);
+		ByteBuffer oldRoot = trie.getRootHash();
+		for (long i = 0; i < 1000; i++) trie.put(i, -i);
+
+		for (long i = 0; i < 1000; i++) {
+			assertEquals(Long.valueOf(i), trie.get(oldRoot, i));
+			assertEquals(Long.valueOf(-i), trie.get(i));
+		}
+	}
+
+	@Test
+	public void testFindOverOtherNodes() {
+		Map<String, String> values = new HashMap<>();
+		for (int i = 0; i < 1000; i++) values.put("key" + i, "value " + i);
+		MemoryStore store = new MemoryStore();
+		Trie<String, String> trie = builder().store(store).from(values).build();
+
+		Map<ByteBuffer, ByteBuffer> nodes = new HashMap<>();
+		for (ByteBuffer hash : store.hashes()) nodes.put(hash, store.get(hash));
+		assertEquals(Serializer.STRING_UTF8.serialize("value 42"),
+				TrieLookup.find(trie.getRootHash(), Serializer.STRING_UTF8.serialize("key42"), nodes::get));
+
+		// hashes found in nodes are handed out as read only views of the scratch buffer
+		ByteBuffer rootHash = trie.getRootHash();
+		TrieLookup.find(rootHash, Serializer.STRING_UTF8.serialize("key42"), hash -> {
+			assertTrue(hash == rootHash || hash.isReadOnly());
+			return nodes.get(hash);
+		});
+
+		nodes.clear();
+		try {
+			TrieLookup.find(trie.getRootHash(), Serializer.STRING_UTF8.serialize("key42"), nodes::get);
+			fail("Missing node should be rejected");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testMalformedNodes() {
+		byte[][] malformed = {
+				{0x0a, 5, 1}, // item longer than node
+				{0x0a, (byte) 0x80}, // truncated length
+				{0x12, 1, 1}, // not an item
+				{0x0a, 1, 1, 0x0a, 1, 1, 0x0a, 1, 1}, // 3 items
+				{0x0a, 0, 0x0a, 1, 1}, // empty key
+				{0x0a, 3, 1, 2, 3}, // short hash
+		};
+		for (byte[] node : malformed) {
+			ByteBuffer rootHash = ByteBuffer.allocate(32);
+			try {
+				TrieLookup.find(rootHash, Serializer.STRING_UTF8.serialize("key"), hash -> ByteBuffer.wrap(node));
+				fail(Arrays.toString(node) + " should be rejected");
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+	}
+}
@@ -0,0 +1,93 @@
+package org.serdaroquai.pml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.serdaroquai.pml.TestTries.randomKey;
+import static org.serdaroquai.pml.TestTries.trieOf;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Spliterator;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+public class TrieSpliteratorTest {
+
+	private static TreeMap<String, String> randomValues(int size) {
+		Random r = new Random(9);
+		TreeMap<String, String> values = new TreeMap<>(); // ascii keys, so String order is byte order
+		while (values.size() < size) {
+			values.put(randomKey(r, 1, 6, "a", "b", "c", "d", "e", "f", "g", "h"), Integer.toString(values.size()));
+		}
+		return values;
+	}
+
+	/**
+	 * Splits as far as possible, then traverses every part in order
+	 */
+	private static <T> void splitAll(Spliterator<T> spliterator, List<T> result, int[] parts) {
+		Spliterator<T> prefix = spliterator.trySplit();
+		if (prefix != null) {
+			splitAll(prefix, result, parts);
+			splitAll(spliterator, result, parts);
+		} else {
+			parts[0]++;
+			spliterator.forEachRemaining(result::add);
+		}
+	}
+
+	@Test
+	public void testSplitsCoverEveryEntryInOrder() {
+		TreeMap<String, String> values = randomValues(3000);
+		Trie<String, String> trie = trieOf(values);
+
+		List<Map.Entry<String, String>> result = new ArrayList<>();
+		int[] parts = new int[1];
+		splitAll(trie.spliterator(), result, parts);
+
+		assertEquals(new ArrayList<>(values.entrySet()), result);
+		assertTrue(parts[0] > 16);
+	}
+
+	@Test
+	public void testParallelStream() throws Exception {
+		TreeMap<String, String> values = randomValues(5000);
+		Trie<String, String> trie = trieOf(values);
+
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			List<Map.Entry<String, String>> ordered = pool.submit(() ->
+				trie.stream().parallel().collect(Collectors.toList())).get();
+			assertEquals(new ArrayList<>(values.entrySet()), ordered);
+
+			long sum = pool.submit(() ->
+				trie.stream().parallel().mapToLong(e -> Long.parseLong(e.getValue())).sum()).get();
+			assertEquals(values.values().stream().mapToLong(Long::parseLong).sum(), sum);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testStartedSpliteratorDoesNotSplit() {
+		Trie<String, String> trie = trieOf(randomValues(100));
+		Spliterator<Map.Entry<String, String>> spliterator = trie.spliterator();
+		assertTrue(spliterator.tryAdvance(e -> {}));
+		assertNull(spliterator.trySplit());
+	}
+
+	@Test
+	public void testEmptyTrie() {
+		Spliterator<Map.Entry<String, String>> spliterator = trieOf(new TreeMap<>()).spliterator();
+		assertNull(spliterator.trySplit());
+		assertFalse(spliterator.tryAdvance(e -> {}));
+		assertEquals(0, spliterator.estimateSize());
+	}
+}
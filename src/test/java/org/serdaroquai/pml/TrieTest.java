@@ -6,9 +6,14 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 import org.junit.Before;
@@ -31,6 +36,16 @@ public class TrieTest {
 			.build();
 	}
 	
+	@Test
+	public void testGetKeyShorterThanExtension() {
+		t.put("doge", "coin");
+		t.put("dogs", "puppies");
+		
+		// root is an extension of "dog", a shorter key used to run past its path
+		assertEquals(t.get("zzzz"), t.get("do"));
+		assertEquals("coin", t.get("doge"));
+	}
+	
 	@Test
 	public void testNodesEmpty() {
 		List<TrieNode> actual = t.nodes();
@@ -700,4 +715,501 @@ public class TrieTest {
 
 	}
 
+
+	@Test
+	public void testPutAllYieldsSameHashAsPuts() {
+		t.put("do", "verb");
+		t.put("dog", "puppy");
+		t.put("doge", "coin");
+		ByteBuffer expected = t.put("horse", "stallion");
+
+		init();
+
+		Map<String, String> map = new LinkedHashMap<>();
+		map.put("horse", "stallion");
+		map.put("doge", "coin");
+		map.put("do", "verb");
+		map.put("dog", "puppy");
+		ByteBuffer actual = t.putAll(map);
+
+		assertEquals(expected, actual);
+		assertEquals(expected, t.getRootHash());
+		assertEquals(map, t.toMap());
+	}
+
+	@Test
+	public void testPutAllOnExistingTrie() {
+		t.put("do", "verb");
+		ByteBuffer oldRootHash = t.put("key", "value");
+
+		Trie<String,String>.WriteBatch batch = t.batch()
+				.put("dog", "puppy")
+				.put("keylong", "newValue")
+				.put("key", "someValue that is really long that does not fit")
+				.put("do", "no-verb");
+		assertEquals(4, batch.size());
+		ByteBuffer actual = batch.commit();
+
+		assertEquals(0, batch.size());
+		assertEquals("no-verb", t.get("do"));
+		assertEquals("puppy", t.get("dog"));
+		assertEquals("newValue", t.get("keylong"));
+		assertEquals("someValue that is really long that does not fit", t.get("key"));
+		assertEquals("verb", t.get(oldRootHash, "do"));
+		assertEquals("value", t.get(oldRootHash, "key"));
+
+		init();
+		t.put("do", "no-verb");
+		t.put("key", "someValue that is really long that does not fit");
+		t.put("keylong", "newValue");
+		assertEquals(t.put("dog", "puppy"), actual);
+	}
+
+	@Test
+	public void testEmptyBatch() {
+		ByteBuffer rootHash = t.put("key", "value");
+		assertEquals(rootHash, t.batch().commit());
+		assertEquals(rootHash, t.putAll(Collections.emptyMap()));
+	}
+
+	@Test
+	public void testPutAllCommitsOnce() {
+		final int[] commits = new int[1];
+		Trie<Long,Long> trie = new Trie.TrieBuilder<Long,Long>()
+				.keySerializer(Serializer.INT64)
+				.valueSerializer(Serializer.INT64)
+				.store(new MemoryStore() {
+					@Override
+					public boolean commit() {
+						commits[0]++;
+						return super.commit();
+					}
+				})
+				.build();
+
+		Map<Long, Long> map = new HashMap<>();
+		for (long i = 0; i < 1000; i++) map.put(i * 31, i);
+		commits[0] = 0;
+		trie.putAll(map);
+
+		assertEquals(1, commits[0]);
+		assertEquals(map, trie.toMap());
+	}
+
+	@Test
+	public void testPutAllRandom() {
+		Random r = new Random();
+		int times = 100;
+
+		while (times-- > 0) {
+			Trie<Long, Long> expected = new Trie.TrieBuilder<Long, Long>()
+					.keySerializer(Serializer.INT64)
+					.valueSerializer(Serializer.INT64)
+					.build();
+			Trie<Long, Long> actual = new Trie.TrieBuilder<Long, Long>()
+					.keySerializer(Serializer.INT64)
+					.valueSerializer(Serializer.INT64)
+					.build();
+
+			int rounds = r.nextInt(5) + 1;
+			while (rounds-- > 0) {
+				Map<Long, Long> map = new HashMap<>();
+				int size = r.nextInt(200);
+				while (size-- > 0) {
+					long key = r.nextInt(1000) + 0L;
+					long value = r.nextInt(5) + 0L;
+					map.put(key, value);
+					expected.put(key, value);
+				}
+				actual.putAll(map);
+				assertEquals(expected.getRootHash(), actual.getRootHash());
+			}
+		}
+	}
+
+	@Test
+	public void testConcurrentTriesYieldSameRootHash() throws Exception {
+		Map<Long, Long> values = new HashMap<>();
+		Random r = new Random();
+		for (int i = 0; i < 2000; i++) values.put(r.nextLong(), r.nextLong());
+
+		Trie<Long, Long> reference = new Trie.TrieBuilder<Long, Long>()
+				.keySerializer(Serializer.INT64)
+				.valueSerializer(Serializer.INT64)
+				.build();
+		ByteBuffer expected = reference.putAll(values);
+
+		int threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<ByteBuffer>> results = new ArrayList<>();
+			for (int i = 0; i < threads * 4; i++) {
+				final boolean batched = i % 2 == 0;
+				results.add(executor.submit(() -> {
+					Trie<Long, Long> trie = new Trie.TrieBuilder<Long, Long>()
+							.keySerializer(Serializer.INT64)
+							.valueSerializer(Serializer.INT64)
+							.build();
+					if (batched) return trie.putAll(values);
+					for (Map.Entry<Long, Long> e : values.entrySet()) trie.put(e.getKey(), e.getValue());
+					return trie.getRootHash();
+				}));
+			}
+			for (Future<ByteBuffer> result : results) {
+				assertEquals(expected, result.get());
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testParallelHashingYieldsSameRootHash() {
+		Random r = new Random();
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			for (int threshold : new int[] {1, 16, 256}) {
+				Trie<Long, Long> sequential = new Trie.TrieBuilder<Long, Long>()
+						.keySerializer(Serializer.INT64)
+						.valueSerializer(Serializer.INT64)
+						.build();
+				Trie<Long, Long> parallel = new Trie.TrieBuilder<Long, Long>()
+						.keySerializer(Serializer.INT64)
+						.valueSerializer(Serializer.INT64)
+						.parallelHashing(pool, threshold)
+						.build();
+
+				for (int round = 0; round < 3; round++) {
+					Map<Long, Long> map = new HashMap<>();
+					for (int i = 0; i < 5000; i++) map.put(r.nextLong(), r.nextLong());
+
+					assertEquals(sequential.putAll(map), parallel.putAll(map));
+				}
+				assertEquals(sequential.toMap(), parallel.toMap());
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testRemoveYieldsSameHashAsNeverInserted() {
+		t.put("do", "verb");
+		t.put("dog", "puppy");
+		t.put("doge", "coin");
+		ByteBuffer expected = t.put("horse", "stallion");
+
+		for (String key : new String[] {"d", "dogecoin", "doges", "horses", "", "k"}) {
+			t.put(key, "some value");
+			assertEquals(expected, t.remove(key));
+			assertEquals(6, t.nodes().size());
+		}
+	}
+
+	@Test
+	public void testRemove() {
+		t.put("do", "verb");
+		t.put("dog", "puppy");
+		t.put("doge", "coin");
+		ByteBuffer oldRootHash = t.put("horse", "stallion");
+
+		t.remove("dog");
+		ByteBuffer actualRootHash = t.remove("horse");
+
+		Map<String, String> expected = new HashMap<>();
+		expected.put("do", "verb");
+		expected.put("doge", "coin");
+		assertEquals(expected, t.toMap());
+		assertEquals("verb", t.get("do"));
+		assertEquals("coin", t.get("doge"));
+
+		// old state is not affected
+		assertEquals("puppy", t.get(oldRootHash, "dog"));
+
+		List<TrieNode> actualNodes = t.nodes();
+
+		init();
+		t.put("do", "verb");
+		ByteBuffer expectedRootHash = t.put("doge", "coin");
+		List<TrieNode> expectedNodes = t.nodes();
+
+		assertEquals(expectedRootHash, actualRootHash);
+		assertEquals(expectedNodes, actualNodes);
+	}
+
+	@Test
+	public void testRemoveMissingKey() {
+		t.put("do", "verb");
+		ByteBuffer expected = t.put("dog", "puppy");
+
+		assertEquals(expected, t.remove("d"));
+		assertEquals(expected, t.remove("doge"));
+		assertEquals(expected, t.remove("cat"));
+		assertEquals(expected, t.remove(""));
+	}
+
+	@Test
+	public void testRemoveAll() {
+		ByteBuffer emptyRootHash = t.getRootHash();
+		t.put("do", "verb");
+		t.put("dog", "puppy");
+
+		t.batch().remove("do").remove("dog").commit();
+
+		assertEquals(emptyRootHash, t.getRootHash());
+		assertEquals(Collections.emptyList(), t.nodes());
+		assertEquals(Collections.emptyMap(), t.toMap());
+	}
+
+	@Test
+	public void testRemoveRandom() {
+		Random r = new Random();
+		int times = 100;
+
+		while (times-- > 0) {
+			Map<Long, Long> values = new HashMap<>();
+			int size = r.nextInt(300);
+			while (size-- > 0) values.put(r.nextInt(1000) + 0L, r.nextInt(5) + 0L);
+
+			Trie<Long, Long> trie = new Trie.TrieBuilder<Long, Long>()
+					.keySerializer(Serializer.INT64)
+					.valueSerializer(Serializer.INT64)
+					.from(values)
+					.build();
+
+			// mix of single removes and batched removes and puts
+			Map<Long, Long> expectedValues = new HashMap<>(values);
+			Trie<Long, Long>.WriteBatch batch = trie.batch();
+			for (int i = 0; i < 100; i++) {
+				long key = r.nextInt(1000) + 0L;
+				if (r.nextInt(4) == 0) {
+					long value = r.nextInt(5) + 0L;
+					expectedValues.put(key, value);
+					batch.put(key, value);
+				} else if (r.nextBoolean()) {
+					expectedValues.remove(key);
+					batch.remove(key);
+				} else {
+					expectedValues.remove(key);
+					batch.commit();
+					trie.remove(key);
+				}
+			}
+			batch.commit();
+
+			Trie<Long, Long> expected = new Trie.TrieBuilder<Long, Long>()
+					.keySerializer(Serializer.INT64)
+					.valueSerializer(Serializer.INT64)
+					.from(expectedValues)
+					.build();
+
+			assertEquals(expected.getRootHash(), trie.getRootHash());
+			assertEquals(expectedValues, trie.toMap());
+		}
+	}
+
+	@Test
+	public void testNodeCache() {
+		t = new Trie.TrieBuilder<String,String>()
+				.keySerializer(Serializer.STRING_UTF8)
+				.valueSerializer(Serializer.STRING_UTF8)
+				.nodeCache(100)
+				.build();
+
+		t.put("do", "verb");
+		t.put("dog", "puppy");
+		t.put("doge", "coin");
+		ByteBuffer root = t.put("horse", "stallion");
+
+		assertEquals("verb", t.get("do"));
+		assertEquals("puppy", t.get(root, "dog"));
+
+		LruCache<ByteBuffer, TrieNode> cache = t.getNodeCache();
+		long misses = cache.getMisses();
+		long hits = cache.getHits();
+
+		// all nodes on the way are cached now
+		assertEquals("verb", t.get("do"));
+		assertEquals("puppy", t.get(root, "dog"));
+
+		assertEquals(misses, cache.getMisses());
+		assertTrue(cache.getHits() > hits);
+		assertEquals(t.toMap(), t.toMap(root));
+	}
+
+	@Test
+	public void testNodeCacheIsBounded() {
+		t = new Trie.TrieBuilder<String,String>()
+				.keySerializer(Serializer.STRING_UTF8)
+				.valueSerializer(Serializer.STRING_UTF8)
+				.nodeCache(2)
+				.build();
+
+		t.put("do", "verb");
+		t.put("dog", "puppy");
+		t.put("doge", "coin");
+		t.put("horse", "stallion");
+
+		assertEquals("coin", t.get("doge"));
+		assertEquals(4, t.toMap().size());
+		assertEquals(2, t.getNodeCache().size());
+	}
+
+	@Test
+	public void testNodeCacheDisabledByDefault() {
+		assertEquals(null, t.getNodeCache());
+	}
+
+	@Test
+	public void testValueCache() {
+		t = new Trie.TrieBuilder<String,String>()
+				.keySerializer(Serializer.STRING_UTF8)
+				.valueSerializer(Serializer.STRING_UTF8)
+				.valueCache(100)
+				.build();
+
+		t.put("do", "verb");
+		ByteBuffer root = t.put("dog", "puppy");
+		LruCache<ByteBuffer, ByteBuffer> cache = t.getValueCache();
+
+		// written values are served from cache
+		assertEquals("verb", t.get("do"));
+		assertEquals("verb", t.get("do"));
+		assertEquals(2, cache.getHits());
+		assertEquals(0, cache.getMisses());
+
+		t.put("do", "noun");
+		assertEquals("noun", t.get("do"));
+
+		t.putAll(Collections.singletonMap("dog", "hound"));
+		assertEquals("hound", t.get("dog"));
+
+		t.remove("dog");
+		assertEquals(t.get("dog"), t.get(t.getRootHash(), "dog"));
+		assertEquals(1, cache.getMisses());
+
+		// queries on past roots do not use the cache
+		assertEquals("puppy", t.get(root, "dog"));
+		assertEquals("verb", t.get(root, "do"));
+		assertEquals(1, cache.getMisses());
+	}
+
+	@Test
+	public void testValueCacheKeepsPutValuesIntact() {
+		Trie<Long,Long> trie = new Trie.TrieBuilder<Long,Long>()
+				.keySerializer(Serializer.INT64)
+				.valueSerializer(Serializer.INT64)
+				.valueCache(100)
+				.build();
+
+		// values are kept as serialized, writes must not consume them
+		trie.put(1L, 10L);
+		trie.putAll(Collections.singletonMap(2L, 20L));
+		assertEquals(Long.valueOf(10L), trie.get(1L));
+		assertEquals(Long.valueOf(20L), trie.get(2L));
+		assertEquals(2, trie.getValueCache().getHits());
+	}
+
+	@Test
+	public void testValueCacheIsNotUpdatedOnFailedCommit() {
+		final boolean[] fail = new boolean[1];
+		t = new Trie.TrieBuilder<String,String>()
+				.keySerializer(Serializer.STRING_UTF8)
+				.valueSerializer(Serializer.STRING_UTF8)
+				.store(new MemoryStore() {
+					@Override
+					public boolean commit() {
+						return !fail[0];
+					}
+				})
+				.valueCache(100)
+				.build();
+
+		ByteBuffer root = t.put("do", "verb");
+		fail[0] = true;
+
+		assertEquals(root, t.put("do", "noun"));
+		assertEquals(root, t.remove("do"));
+		assertEquals("verb", t.get("do"));
+	}
+
+	@Test
+	public void testFailedCommitLeavesNoNodesBehind() {
+		final boolean[] fail = new boolean[1];
+		MemoryStore store = new MemoryStore() {
+			@Override
+			protected boolean write(Map<ByteBuffer, ByteBuffer> nodes, Set<ByteBuffer> removals) {
+				return !fail[0] && super.write(nodes, removals);
+			}
+		};
+		t = new Trie.TrieBuilder<String,String>()
+				.keySerializer(Serializer.STRING_UTF8)
+				.valueSerializer(Serializer.STRING_UTF8)
+				.store(store)
+				.build();
+
+		t.put("do", "verb");
+		ByteBuffer rootHash = t.put("dog", "puppy");
+		int size = store.size();
+
+		fail[0] = true;
+		assertEquals(rootHash, t.put("doge", "coin"));
+		assertEquals(rootHash, t.putAll(Collections.singletonMap("horse", "stallion")));
+		assertEquals(rootHash, t.remove("do"));
+
+		assertEquals(size, store.size());
+		assertEquals(0, store.stagedCount());
+
+		fail[0] = false;
+		t.put("doge", "coin");
+		assertEquals("coin", t.get("doge"));
+	}
+
+	@Test
+	public void testAbandonedUpdateLeavesNoNodesBehind() {
+		final boolean[] fail = new boolean[1];
+		MemoryStore store = new MemoryStore() {
+			@Override
+			public void put(ByteBuffer hash, ByteBuffer encoded) {
+				// fails half way through an update, with some of its nodes already staged
+				if (fail[0] && stagedCount() >= 2) throw new IllegalStateException("Disk is full");
+				super.put(hash, encoded);
+			}
+		};
+		t = new Trie.TrieBuilder<String,String>()
+				.keySerializer(Serializer.STRING_UTF8)
+				.valueSerializer(Serializer.STRING_UTF8)
+				.store(store)
+				.build();
+		for (int i = 0; i < 1000; i++) t.put("key" + i, "a value that is long enough not to be inlined " + i);
+
+		ByteBuffer rootHash = t.getRootHash();
+		int size = store.size();
+		fail[0] = true;
+
+		try {
+			t.put("key500", "changed");
+			fail("Update should fail");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		try {
+			t.putAll(Collections.singletonMap("key7", "changed"));
+			fail("Update should fail");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		try {
+			t.remove("key42");
+			fail("Update should fail");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+
+		assertEquals(rootHash, t.getRootHash());
+		assertEquals(size, store.size());
+		assertEquals(0, store.stagedCount());
+		assertEquals("a value that is long enough not to be inlined 500", t.get("key500"));
+	}
+
 }